@@ -0,0 +1,214 @@
+package newbank.benchmark;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import newbank.server.AccountNumberAllocator;
+import newbank.server.CheckingAccount;
+import newbank.server.CustomerID;
+import newbank.server.Loan;
+import newbank.server.NewBank;
+
+// throughput of the bank's command engine, run in-process without a network or journal
+// the benchmarks are run by SingleThreadBenchmarks and MultiThreadBenchmarks, which only differ in thread count
+// every benchmark leaves the balances as it found them (transfers are undone by the next call on the same thread),
+// so no account runs dry however long the measurement is
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public abstract class BankBenchmarks {
+
+	// a transfer and the one that undoes it, made by alternate calls on a thread
+	@State(Scope.Thread)
+	public static class RoundTrip {
+		int customer;
+		int payee;
+		private boolean outbound;
+
+		// true for the first transfer of each pair, which picks the customers for both
+		boolean outbound() {
+			outbound = !outbound;
+			return outbound;
+		}
+	}
+
+	// a lender and a borrower kept for one thread, since the bank does not let a customer both lend and borrow
+	@State(Scope.Thread)
+	public static class LoanPair {
+		// a loan of 100 repaid 0.01 at a time - a new one is taken out when it has been paid off
+		static final int REPAYMENTS = 10000;
+
+		CustomerID lender;
+		CustomerID borrower;
+		String loanID; // the loan being repaid (null until the first repayment)
+		int repaymentsLeft;
+
+		@Setup(Level.Trial)
+		public void setUp(BankState state, ThreadParams thread) {
+			int lenderIndex = thread.getThreadIndex() * 2;
+			if (lenderIndex + 1 >= state.customers) {
+				throw new IllegalStateException("customers must be at least twice the number of threads");
+			}
+			lender = state.customerIDs[lenderIndex];
+			borrower = state.customerIDs[lenderIndex + 1];
+		}
+
+		// offers a loan and borrows it; returns its ID
+		String open(NewBank bank, String amount) {
+			String offer = bank.processRequest(lender, "OFFERLOAN " + amount + " Current 2");
+			int start = offer.indexOf("\nLoan");
+			if (start < 0) {
+				throw new IllegalStateException("Loan not offered: " + offer);
+			}
+			String id = offer.substring(start + 1, offer.indexOf(':', start));
+			bank.processRequest(borrower, "BORROWFROM " + id + " Current");
+			return id;
+		}
+
+		void remove(NewBank bank, String id) {
+			bank.processRequest(borrower, "REMOVELOAN " + id);
+			bank.processRequest(lender, "REMOVELOAN " + id);
+		}
+	}
+
+	// loans on offer for SHOWLOANS to list, each from a customer at the top of the bank (clear of the loan pairs)
+	@State(Scope.Benchmark)
+	public static class Marketplace {
+		@Param({"100"})
+		public int offers;
+
+		@Setup(Level.Trial)
+		public void setUp(BankState state) {
+			for (int i = 0; i < Math.min(offers, state.customers / 2); i++) {
+				state.bank.processRequest(state.customerIDs[state.customers - 1 - i], "OFFERLOAN 10 Current 2");
+			}
+		}
+	}
+
+	// a loan that started spanDays before the date it is brought up to, e.g. after TIMETRAVEL
+	@State(Scope.Thread)
+	public static class LongGap {
+		@Param({"30", "3650"})
+		public int spanDays;
+
+		Loan loan;
+		Date end;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			Calendar calendar = Calendar.getInstance();
+			Date start = calendar.getTime();
+			calendar.add(Calendar.DATE, spanDays);
+			end = calendar.getTime();
+			loan = new Loan(100, 0.05, 1);
+			loan.setLendingAccount(new CheckingAccount("07-16-18", 70000000, "Lender", 100), start);
+			loan.setBorrowingAccount(new CheckingAccount("07-16-18", 70000001, "Borrower", 0), start);
+		}
+	}
+
+	// an allocator that has already handed out one number per customer
+	@State(Scope.Benchmark)
+	public static class Allocator {
+		volatile AccountNumberAllocator allocator;
+		int allocated;
+
+		@Setup(Level.Iteration)
+		public void setUp(BankState state) {
+			allocated = state.customers;
+			allocator = new AccountNumberAllocator();
+			for (int i = 0; i < allocated; i++) {
+				allocator.allocate();
+			}
+		}
+	}
+
+	@Benchmark
+	public String showMyAccounts(BankState state) {
+		return state.bank.processRequest(state.randomCustomer(), "SHOWMYACCOUNTS");
+	}
+
+	@Benchmark
+	public String move(BankState state, RoundTrip trip) {
+		if (trip.outbound()) {
+			trip.customer = state.randomIndex();
+			return state.bank.processRequest(state.customerIDs[trip.customer], "MOVE 0.01 Current Main");
+		}
+		return state.bank.processRequest(state.customerIDs[trip.customer], "MOVE 0.01 Main Current");
+	}
+
+	@Benchmark
+	public String pay(BankState state, RoundTrip trip) {
+		if (trip.outbound()) {
+			trip.customer = state.randomIndex();
+			trip.payee = (trip.customer + 1 + (state.randomIndex() % (state.customers - 1))) % state.customers;
+			return state.bank.processRequest(state.customerIDs[trip.customer],
+					"PAY 0.01 Current " + BankState.name(trip.payee) + " Current");
+		}
+		return state.bank.processRequest(state.customerIDs[trip.payee],
+				"PAY 0.01 Current " + BankState.name(trip.customer) + " Current");
+	}
+
+	// a loan from offer to removal: OFFERLOAN, BORROWFROM, REPAY in full and REMOVELOAN by both customers
+	@Benchmark
+	public String loanCycle(BankState state, LoanPair pair, Blackhole blackhole) {
+		String id = pair.open(state.bank, "10");
+		blackhole.consume(state.bank.processRequest(pair.borrower, "REPAY " + id + " 10 Current"));
+		blackhole.consume(state.bank.processRequest(pair.borrower, "REMOVELOAN " + id));
+		return state.bank.processRequest(pair.lender, "REMOVELOAN " + id);
+	}
+
+	@Benchmark
+	public String repay(BankState state, LoanPair pair) {
+		if (pair.repaymentsLeft == 0) {
+			if (pair.loanID != null) {
+				pair.remove(state.bank, pair.loanID);
+			}
+			pair.loanID = pair.open(state.bank, "100");
+			pair.repaymentsLeft = LoanPair.REPAYMENTS;
+		}
+		pair.repaymentsLeft--;
+		return state.bank.processRequest(pair.borrower, "REPAY " + pair.loanID + " 0.01 Current");
+	}
+
+	@Benchmark
+	public String showLoans(BankState state, Marketplace marketplace) {
+		return state.bank.processRequest(state.randomCustomer(), "SHOWLOANS");
+	}
+
+	// the cost of bringing a loan up to date after a long gap
+	@Benchmark
+	public double repaymentAmount(LongGap gap) {
+		return gap.loan.getRepaymentAmount(gap.end);
+	}
+
+	@Benchmark
+	public int accountNumbers(Allocator numbers) {
+		try {
+			return numbers.allocator.allocate();
+		} catch (IllegalStateException e) {
+			// the whole range has been used - carry on from the same point with an empty bitmap rather than
+			// refilling it here, inside the measurement
+			numbers.allocator = new AccountNumberAllocator(numbers.allocated);
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,55 @@
+package newbank.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import newbank.server.CustomerID;
+import newbank.server.NewBank;
+
+// a bank of benchmark customers, each with a Main savings account and a Current checking account holding 1000
+// the bank is a singleton, so every benchmark and bank size needs a JVM of its own - never run with -f 0
+@State(Scope.Benchmark)
+public class BankState {
+
+	@Param({"1000"})
+	public int customers;
+
+	NewBank bank;
+	CustomerID vault;
+	CustomerID[] customerIDs;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		if (customers < 2) {
+			throw new IllegalArgumentException("customers must be at least 2");
+		}
+		bank = NewBank.getBank();
+		vault = bank.checkLogInDetails("Bhagy", "test1234");
+		// allow the bank vault to fund every customer however large the bank is
+		bank.processRequest(vault, "SETOVERDRAFT 2000000000 Bhagy");
+		customerIDs = new CustomerID[customers];
+		for (int i = 0; i < customers; i++) {
+			customerIDs[i] = bank.createNewCustomer(name(i), "password" + i);
+			bank.processRequest(customerIDs[i], "NEWCHECKINGACCOUNT Current");
+			bank.processRequest(vault, "PAY 1000 BankVault " + name(i) + " Current");
+		}
+	}
+
+	static String name(int customer) {
+		return "Customer" + customer;
+	}
+
+	int randomIndex() {
+		return ThreadLocalRandom.current().nextInt(customers);
+	}
+
+	CustomerID randomCustomer() {
+		return customerIDs[randomIndex()];
+	}
+
+}
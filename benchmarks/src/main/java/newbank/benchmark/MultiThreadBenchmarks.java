@@ -0,0 +1,8 @@
+package newbank.benchmark;
+
+import org.openjdk.jmh.annotations.Threads;
+
+// the benchmarks in BankBenchmarks on one thread per processor, all working on the same bank
+@Threads(Threads.MAX)
+public class MultiThreadBenchmarks extends BankBenchmarks {
+}
@@ -0,0 +1,8 @@
+package newbank.benchmark;
+
+import org.openjdk.jmh.annotations.Threads;
+
+// the benchmarks in BankBenchmarks on one thread
+@Threads(1)
+public class SingleThreadBenchmarks extends BankBenchmarks {
+}
@@ -6,6 +6,12 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class ExampleClient extends Thread{
 	
@@ -13,6 +19,11 @@ public class ExampleClient extends Thread{
 	private PrintWriter bankServerOut;	
 	private BufferedReader userInput;
 	private Thread bankServerResponseThread;
+
+	// pipelined mode: commands waiting for a response, by the ID they were sent with
+	private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong nextID = new AtomicLong(1);
+	private Consumer<String> notices; // receives messages the bank pushes (e.g. a loan falling due)
 	
 	public ExampleClient(String ip, int port) throws UnknownHostException, IOException {
 		server = new Socket(ip,port);
@@ -39,6 +50,118 @@ public class ExampleClient extends Thread{
 		};
 		bankServerResponseThread.start();
 	}
+
+	// connects in pipelined mode, for use by other programs rather than from the console
+	// any number of commands can be sent without waiting, and each one's response completes the future it returned
+	private ExampleClient(String ip, int port, Consumer<String> notices) throws UnknownHostException, IOException {
+		server = new Socket(ip,port);
+		// not auto-flushing: commands sent together leave in as few packets as possible (see send)
+		bankServerOut = new PrintWriter(server.getOutputStream(), false);
+		this.notices = notices;
+		BufferedReader bankServerIn = new BufferedReader(new InputStreamReader(server.getInputStream()));
+		bankServerIn.readLine(); // the greeting sent to every new connection
+		bankServerResponseThread = new Thread(() -> readFrames(bankServerIn), "NewBank client responses");
+		bankServerResponseThread.setDaemon(true);
+		bankServerResponseThread.start();
+	}
+
+	// opens a pipelined connection, waiting until the server has switched to pipelined mode
+	public static ExampleClient connect(String ip, int port, Consumer<String> notices) throws IOException {
+		ExampleClient client = new ExampleClient(ip, port, notices);
+		CompletableFuture<String> negotiated = new CompletableFuture<>();
+		client.inFlight.put("0", negotiated);
+		synchronized (client.bankServerOut) {
+			client.bankServerOut.println("PIPELINE");
+			client.bankServerOut.flush();
+		}
+		negotiated.join();
+		return client;
+	}
+
+	// each response is a header line "<id> <line count>" followed by that many lines
+	private void readFrames(BufferedReader bankServerIn) {
+		try {
+			String header;
+			while((header = bankServerIn.readLine()) != null) {
+				int space = header.lastIndexOf(' ');
+				String id = header.substring(0, space);
+				int lines = Integer.parseInt(header.substring(space + 1));
+				StringBuilder response = new StringBuilder();
+				for(int i = 0; i < lines; i++) {
+					if(i > 0) {
+						response.append('\n');
+					}
+					response.append(bankServerIn.readLine());
+				}
+				if(id.equals("*")) {
+					notices.accept(response.toString());
+					continue;
+				}
+				CompletableFuture<String> waiting = inFlight.remove(id);
+				if(waiting != null) {
+					waiting.complete(response.toString());
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			if(!server.isClosed()) { // otherwise close() was called
+				e.printStackTrace();
+			}
+		}
+		// the connection has gone - nothing still waiting will get a response
+		IOException closed = new IOException("Connection to the bank closed.");
+		for(CompletableFuture<String> waiting : inFlight.values()) {
+			waiting.completeExceptionally(closed);
+		}
+		inFlight.clear();
+	}
+
+	// sends a line of the conversation (a command, or a login answer) and returns its response
+	public CompletableFuture<String> send(String command) {
+		return send(command, true);
+	}
+
+	// flush is false while several lines are being queued together
+	private CompletableFuture<String> send(String command, boolean flush) {
+		String id = Long.toString(nextID.getAndIncrement());
+		CompletableFuture<String> response = new CompletableFuture<>();
+		inFlight.put(id, response);
+		synchronized (bankServerOut) {
+			bankServerOut.println(id + " " + command);
+			if(flush) {
+				bankServerOut.flush();
+			}
+		}
+		return response;
+	}
+
+	// logs in as an existing customer; completes with the response to the password
+	public CompletableFuture<String> login(String userName, String password) {
+		synchronized (bankServerOut) {
+			send("y", false);
+			send(userName, false);
+			return send(password);
+		}
+	}
+
+	// carries on a session from an earlier connection with the token it was given at login, instead of logging in
+	public CompletableFuture<String> resume(String token) {
+		return send("RESUME " + token);
+	}
+
+	// runs payments and transfers as one BATCH; completes with the batch's combined response
+	public CompletableFuture<String> batch(List<String> commands) {
+		synchronized (bankServerOut) {
+			bankServerOut.println("- BATCH"); // lines up to END get no response of their own
+			for(String command : commands) {
+				bankServerOut.println("- " + command);
+			}
+			return send("END");
+		}
+	}
+
+	public void close() throws IOException {
+		server.close();
+	}
 	
 	
 	public void run() {
@@ -1,24 +1,44 @@
 package newbank.server;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
 abstract class Account {
-	
+
+	private static final VarHandle BALANCE;
+
+	static {
+		try {
+			BALANCE = MethodHandles.lookup().findVarHandle(Account.class, "accountBalance", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
 	private String accountName;
 	private String accountSortCode;
 	private int accountNumber;
-	private double accountBalance;
+	private volatile long accountBalance; // pence - only changed through compare-and-set
 	protected boolean canPay;
 	protected boolean canLoan;
 	protected String accountType;
+	private Customer owner; // set when the account is added to a customer
 
 	public Account(String accountSortCode, int accountNumber, String accountName, double openingBalance) {
 		this.accountSortCode = accountSortCode;
 		this.accountNumber = accountNumber;
 		this.accountName = accountName;
-		this.accountBalance = openingBalance;
+		this.accountBalance = Money.toPence(openingBalance);
 	}
-	
+
 	public String toString() {
-		return (accountType + " - " + accountName + " (" + accountSortCode + " " + accountNumber + "): " + accountBalance);
+		return appendTo(new StringBuilder()).toString();
+	}
+
+	// writes the account's description and balance into a response
+	public StringBuilder appendTo(StringBuilder out) {
+		return out.append(accountType).append(" - ").append(accountName).append(" (").append(accountSortCode).append(' ')
+				.append(accountNumber).append("): ").append(getBalance());
 	}
 
 	public String getName() {
@@ -29,6 +49,14 @@ abstract class Account {
 		this.accountName = name;
 	}
 
+	public Customer getOwner() {
+		return owner;
+	}
+
+	public void setOwner(Customer owner) {
+		this.owner = owner;
+	}
+
 	public String getAccountType() {
 		return accountType;
 	}
@@ -42,15 +70,61 @@ abstract class Account {
 	}
 
 	public double getBalance() {
+		return Money.toPounds(accountBalance);
+	}
+
+	public long getBalancePence() {
 		return accountBalance;
 	}
 
 	public void withdrawFunds(double amount) {
-		accountBalance -= amount;
+		withdraw(Money.toPence(amount));
 	}
 
 	public void depositFunds(double amount) {
-		accountBalance += amount;
+		deposit(Money.toPence(amount));
+	}
+
+	// removes funds from the account unconditionally
+	public void withdraw(long pence) {
+		deposit(-pence);
+	}
+
+	// adds funds to the account
+	public void deposit(long pence) {
+		long balance;
+		do {
+			balance = accountBalance;
+		} while (!BALANCE.compareAndSet(this, balance, Math.addExact(balance, pence)));
+		fundsChanged(pence);
+	}
+
+	// removes funds only if the balance left afterwards would not drop below the given floor
+	// (zero, or minus the customer's overdraft limit); the check and the debit are one atomic step
+	public boolean withdrawIfAvailable(long pence, long floor) {
+		long balance;
+		long remaining;
+		do {
+			balance = accountBalance;
+			try {
+				remaining = Math.subtractExact(balance, pence);
+			} catch (ArithmeticException e) {
+				return false; // far below any floor
+			}
+			if (remaining < floor) {
+				return false;
+			}
+		} while (!BALANCE.compareAndSet(this, balance, remaining));
+		fundsChanged(-pence);
+		return true;
+	}
+
+	// keeps the owner's running total in step with the balance
+	private void fundsChanged(long pence) {
+		Customer currentOwner = owner;
+		if (currentOwner != null) {
+			currentOwner.fundsChanged(pence);
+		}
 	}
 
 }
@@ -0,0 +1,75 @@
+package newbank.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// hands out unique account numbers in the range 70000000 - 79999999
+// numbers come from a fixed permutation of the range, so the only state needed to carry on after a
+// restart is how far along the permutation we are; a bitmap records every number in use so that
+// numbers reserved outside the sequence are never handed out twice
+public class AccountNumberAllocator {
+
+	public static final int FIRST_NUMBER = 70000000;
+	public static final int LAST_NUMBER = 79999999;
+	private static final long RANGE = LAST_NUMBER - FIRST_NUMBER + 1;
+	private static final long MULTIPLIER = 7368787; // coprime with RANGE, so (MULTIPLIER * i + OFFSET) % RANGE is a permutation
+	private static final long OFFSET = 7771234; // the first number handed out is 77771234
+
+	private final AtomicLong nextIndex; // position in the permutation
+	private final AtomicLongArray inUse; // one bit per number in the range
+
+	public AccountNumberAllocator() {
+		this(0);
+	}
+
+	// continue an existing sequence, e.g. after a restart
+	public AccountNumberAllocator(long nextIndex) {
+		this.nextIndex = new AtomicLong(nextIndex);
+		this.inUse = new AtomicLongArray((int) ((RANGE + 63) / 64));
+	}
+
+	// returns a number that has not been handed out before; safe to call from any thread
+	public int allocate() {
+		while (true) {
+			long index = nextIndex.getAndIncrement();
+			if (index >= RANGE) {
+				throw new IllegalStateException("No account numbers left to assign");
+			}
+			int number = (int) (FIRST_NUMBER + (MULTIPLIER * index + OFFSET) % RANGE);
+			if (reserve(number)) {
+				return number;
+			}
+		}
+	}
+
+	// marks a number as in use; returns false if it was already taken
+	public boolean reserve(int number) {
+		if (number < FIRST_NUMBER || number > LAST_NUMBER) {
+			throw new IllegalArgumentException("Account number out of range: " + number);
+		}
+		int bit = number - FIRST_NUMBER;
+		int word = bit >>> 6;
+		long mask = 1L << bit;
+		long current;
+		do {
+			current = inUse.get(word);
+			if ((current & mask) != 0) {
+				return false;
+			}
+		} while (!inUse.compareAndSet(word, current, current | mask));
+		return true;
+	}
+
+	public boolean isInUse(int number) {
+		if (number < FIRST_NUMBER || number > LAST_NUMBER) {
+			return false;
+		}
+		int bit = number - FIRST_NUMBER;
+		return (inUse.get(bit >>> 6) & (1L << bit)) != 0;
+	}
+
+	public long getNextIndex() {
+		return nextIndex.get();
+	}
+
+}
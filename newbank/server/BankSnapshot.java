@@ -0,0 +1,328 @@
+package newbank.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// a point-in-time copy of the whole bank, written to a compact binary file and read back through a memory map
+// the copy is built up while the bank keeps running: the bank-wide values are fixed at the moment the snapshot is
+// started, and each customer (with its accounts and loans) is copied either by the snapshot thread or, if a command is
+// about to change it first, by that command (see NewBank.preserveForSnapshot)
+public class BankSnapshot {
+
+	private static final int MAGIC = 0x4e42534e; // "NBSN"
+	private static final int VERSION = 3;
+
+	private static final byte CHECKING = 0;
+	private static final byte SAVINGS = 1;
+	private static final byte VAULT = 2;
+
+	// copy of one account
+	public static class AccountImage {
+		byte kind;
+		String sortCode;
+		int number;
+		String name;
+		long balance; // pence
+	}
+
+	// copy of one customer, including references (by ID) to its loans
+	public static class CustomerImage {
+		String userName;
+		String password;
+		boolean isAdmin;
+		int overdraft;
+		String phoneNo;
+		String landlinePhoneNo;
+		String address;
+		String emailAddress;
+		String postcode;
+		List<AccountImage> accounts = new ArrayList<>();
+		List<String> loansOffered = new ArrayList<>();
+		List<String> loansReceived = new ArrayList<>();
+	}
+
+	// copy of one loan; accounts are referred to by sort code and account number
+	public static class LoanImage {
+		String loanID;
+		long principal; // pence
+		double interestRate;
+		int loanDuration;
+		long startDay; // days since 1970-01-01, -1 if not started
+		long balanceDay;
+		long balance; // pence
+		long interestAccrued; // pence
+		boolean fundsCommitted;
+		boolean loanStarted;
+		boolean loanFinished;
+		String lendingSortCode; // null if no lending account
+		int lendingNumber;
+		String borrowingSortCode; // null if no borrowing account
+		int borrowingNumber;
+	}
+
+	// bank-wide values, fixed when the snapshot starts
+	final long epoch; // identifies this snapshot to the customers it has copied
+	final long journalPosition; // number of journal entries the snapshot includes
+	final long calendarMillis;
+	final long endOfDay; // the last day interest was brought up to (see NewBank.runEndOfDay)
+	final long nextAccountNumberIndex;
+	final int nextLoanID;
+
+	// filled in while the snapshot is running
+	final Map<Customer, CustomerImage> customers = new ConcurrentHashMap<>();
+	final Map<String, LoanImage> loans = new ConcurrentHashMap<>();
+
+	// the customers to write, in order (only set for a snapshot that has been read from a file)
+	final List<CustomerImage> orderedCustomers;
+
+	BankSnapshot(long epoch, long journalPosition, long calendarMillis, long endOfDay, long nextAccountNumberIndex,
+				 int nextLoanID) {
+		this.epoch = epoch;
+		this.journalPosition = journalPosition;
+		this.calendarMillis = calendarMillis;
+		this.endOfDay = endOfDay;
+		this.nextAccountNumberIndex = nextAccountNumberIndex;
+		this.nextLoanID = nextLoanID;
+		this.orderedCustomers = new ArrayList<>();
+	}
+
+	// copies a customer and its loans; the caller must hold the customer's lock
+	// (the customer's name is filled in by the snapshot thread, which finds customers through the name map)
+	void capture(Customer customer) {
+		CustomerImage image = new CustomerImage();
+		image.password = customer.getPassword();
+		image.isAdmin = customer.getIsAdmin();
+		image.overdraft = customer.getOverdraft();
+		image.phoneNo = customer.getPhoneNo();
+		image.landlinePhoneNo = customer.getLandlinePhoneNo();
+		image.address = customer.getAddress();
+		image.emailAddress = customer.getEmailAddress();
+		image.postcode = customer.getPostcode();
+		for (Account account : customer.getAccounts()) {
+			image.accounts.add(captureAccount(account));
+		}
+		for (Loan loan : customer.getLoansOffered()) {
+			image.loansOffered.add(loan.getLoanID());
+			captureLoan(loan);
+		}
+		for (Loan loan : customer.getLoansReceived()) {
+			image.loansReceived.add(loan.getLoanID());
+			captureLoan(loan);
+		}
+		customers.put(customer, image);
+	}
+
+	// copies one account; the caller must hold its owner's lock
+	static AccountImage captureAccount(Account account) {
+		AccountImage image = new AccountImage();
+		image.kind = account instanceof BankVault ? VAULT : account instanceof SavingsAccount ? SAVINGS : CHECKING;
+		image.sortCode = account.getAccountSortCode();
+		image.number = account.getAccountNumber();
+		image.name = account.getName();
+		image.balance = account.getBalancePence();
+		return image;
+	}
+
+	// a loan is shared by two customers - it is copied when the first of them is copied
+	private void captureLoan(Loan loan) {
+		if (!loans.containsKey(loan.getLoanID())) {
+			loans.putIfAbsent(loan.getLoanID(), loan.capture());
+		}
+	}
+
+	CustomerImage getImage(Customer customer) {
+		return customers.get(customer);
+	}
+
+	// builds a live account from its copy
+	static Account restoreAccount(AccountImage image) {
+		Account account;
+		switch (image.kind) {
+			case VAULT:
+				account = new BankVault(image.sortCode, image.number, image.name, 0);
+				break;
+			case SAVINGS:
+				account = new SavingsAccount(image.sortCode, image.number, image.name, 0);
+				break;
+			default:
+				account = new CheckingAccount(image.sortCode, image.number, image.name, 0);
+		}
+		account.deposit(image.balance);
+		return account;
+	}
+
+	// writes the snapshot to a temporary file and then moves it over the previous snapshot in one step
+	void write(Path file, List<CustomerImage> images) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (OutputStream stream = Files.newOutputStream(temp);
+			 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(journalPosition);
+			out.writeLong(calendarMillis);
+			out.writeLong(endOfDay);
+			out.writeLong(nextAccountNumberIndex);
+			out.writeInt(nextLoanID);
+			out.writeInt(loans.size());
+			for (LoanImage loan : loans.values()) {
+				writeString(out, loan.loanID);
+				out.writeLong(loan.principal);
+				out.writeDouble(loan.interestRate);
+				out.writeInt(loan.loanDuration);
+				out.writeLong(loan.startDay);
+				out.writeLong(loan.balanceDay);
+				out.writeLong(loan.balance);
+				out.writeLong(loan.interestAccrued);
+				out.writeBoolean(loan.fundsCommitted);
+				out.writeBoolean(loan.loanStarted);
+				out.writeBoolean(loan.loanFinished);
+				writeString(out, loan.lendingSortCode);
+				out.writeInt(loan.lendingNumber);
+				writeString(out, loan.borrowingSortCode);
+				out.writeInt(loan.borrowingNumber);
+			}
+			out.writeInt(images.size());
+			for (CustomerImage customer : images) {
+				writeString(out, customer.userName);
+				writeString(out, customer.password);
+				out.writeBoolean(customer.isAdmin);
+				out.writeInt(customer.overdraft);
+				writeString(out, customer.phoneNo);
+				writeString(out, customer.landlinePhoneNo);
+				writeString(out, customer.address);
+				writeString(out, customer.emailAddress);
+				writeString(out, customer.postcode);
+				out.writeInt(customer.accounts.size());
+				for (AccountImage account : customer.accounts) {
+					out.writeByte(account.kind);
+					writeString(out, account.sortCode);
+					out.writeInt(account.number);
+					writeString(out, account.name);
+					out.writeLong(account.balance);
+				}
+				writeStrings(out, customer.loansOffered);
+				writeStrings(out, customer.loansReceived);
+			}
+			out.flush();
+			stream.flush();
+		}
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// maps a snapshot file into memory and decodes it (returns null if there is no snapshot)
+	static BankSnapshot read(Path file) throws IOException {
+		if (!Files.exists(file)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+				throw new IOException("Not a NewBank snapshot (or an unsupported version): " + file);
+			}
+			BankSnapshot snapshot = new BankSnapshot(0, in.getLong(), in.getLong(), in.getLong(), in.getLong(), in.getInt());
+			int loanCount = in.getInt();
+			Map<String, LoanImage> loans = new LinkedHashMap<>();
+			for (int i = 0; i < loanCount; i++) {
+				LoanImage loan = new LoanImage();
+				loan.loanID = readString(in);
+				loan.principal = in.getLong();
+				loan.interestRate = in.getDouble();
+				loan.loanDuration = in.getInt();
+				loan.startDay = in.getLong();
+				loan.balanceDay = in.getLong();
+				loan.balance = in.getLong();
+				loan.interestAccrued = in.getLong();
+				loan.fundsCommitted = in.get() != 0;
+				loan.loanStarted = in.get() != 0;
+				loan.loanFinished = in.get() != 0;
+				loan.lendingSortCode = readString(in);
+				loan.lendingNumber = in.getInt();
+				loan.borrowingSortCode = readString(in);
+				loan.borrowingNumber = in.getInt();
+				loans.put(loan.loanID, loan);
+			}
+			snapshot.loans.putAll(loans);
+			int customerCount = in.getInt();
+			for (int i = 0; i < customerCount; i++) {
+				CustomerImage customer = new CustomerImage();
+				customer.userName = readString(in);
+				customer.password = readString(in);
+				customer.isAdmin = in.get() != 0;
+				customer.overdraft = in.getInt();
+				customer.phoneNo = readString(in);
+				customer.landlinePhoneNo = readString(in);
+				customer.address = readString(in);
+				customer.emailAddress = readString(in);
+				customer.postcode = readString(in);
+				int accountCount = in.getInt();
+				for (int j = 0; j < accountCount; j++) {
+					AccountImage account = new AccountImage();
+					account.kind = in.get();
+					account.sortCode = readString(in);
+					account.number = in.getInt();
+					account.name = readString(in);
+					account.balance = in.getLong();
+					customer.accounts.add(account);
+				}
+				readStrings(in, customer.loansOffered);
+				readStrings(in, customer.loansReceived);
+				snapshot.orderedCustomers.add(customer);
+			}
+			return snapshot;
+		}
+	}
+
+	// strings are written as a length followed by UTF-8 bytes; a length of -1 is a null string
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+		out.writeInt(values.size());
+		for (String value : values) {
+			writeString(out, value);
+		}
+	}
+
+	private static void readStrings(ByteBuffer in, List<String> values) {
+		int count = in.getInt();
+		for (int i = 0; i < count; i++) {
+			values.add(readString(in));
+		}
+	}
+
+}
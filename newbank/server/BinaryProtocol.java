@@ -0,0 +1,164 @@
+package newbank.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// a compact binary protocol for programs, served on the same port as the text conversation
+// after reading the greeting line, a client switches to it by sending the bytes MAGIC and VERSION (a text client
+// never starts with MAGIC); from then on every message in either direction is a frame: a varint length, then the body
+// request body: varint request ID, opcode byte, varint argument count, then each argument as a tag byte and a value
+// (STRING: varint length and UTF-8 bytes, AMOUNT: zig-zag varint of pence, INTEGER: zig-zag varint)
+// response body: varint request ID, result code byte, then a payload that depends on the request and the result:
+// - a payment or transfer that was made or was short of funds: zig-zag varint of the paying account's balance
+// - SHOWMYACCOUNTS: varint count, then each account's kind byte, name, sort code, varint number and balance
+// - a successful LOGIN or CREATE_CUSTOMER: the session token as a STRING value, which RESUME accepts on a later
+//   connection in place of logging in
+// - anything else: the response text as a STRING value
+// notices pushed by the bank are sent with request ID 0 and the NOTICE result code
+final class BinaryProtocol {
+
+	static final int MAGIC = 0;
+	static final int VERSION = 1;
+	static final int MAX_FRAME_LENGTH = 1 << 20; // connections sending a longer frame are dropped
+
+	// opcodes for the login conversation; the commands start at FIRST_COMMAND
+	static final int LOGIN = 1; // user name, password
+	static final int CREATE_CUSTOMER = 2; // user name, password
+	static final int RESUME = 3; // session token
+	private static final int FIRST_COMMAND = 16;
+	// the commands in opcode order - new commands are only ever added at the end, so opcodes never change
+	private static final Command[] COMMANDS = {
+			Command.HELP, Command.SHOWMYACCOUNTS, Command.NEWSAVINGSACCOUNT, Command.NEWCHECKINGACCOUNT,
+			Command.RENAMEACCOUNT, Command.DEPOSIT, Command.SETOVERDRAFT, Command.CHECKOVERDRAFT, Command.MOVE,
+			Command.PAY, Command.PAYACCOUNT, Command.OFFERLOAN, Command.REQUESTLOAN, Command.SHOWLOANS,
+			Command.LENDTO, Command.BORROWFROM, Command.REPAY, Command.REMOVELOAN, Command.TIMETRAVEL, Command.LOGOUT,
+			Command.SHOWCONTACTDETAILS, Command.CHANGEPOSTCODE, Command.CHANGEMYADDRESS, Command.CHANGEMYEMAIL,
+			Command.CHANGEMYMOBILE, Command.CHANGEMYLANDLINE, Command.PROMOTE, Command.DEMOTE,
+			Command.CHECKPERMISSIONS, Command.STATS, Command.BATCH // BATCH: each argument is a line of the batch
+	};
+
+	// argument tags
+	static final int STRING = 0;
+	static final int AMOUNT = 1;
+	static final int INTEGER = 2;
+
+	// result codes, after the ones a command can report (see CommandResult)
+	static final byte NOTICE = 16;
+	static final byte NOT_LOGGED_IN = 17;
+	static final byte UNKNOWN_OPCODE = 18;
+	static final byte MALFORMED = 19; // the frame could not be decoded
+
+	private BinaryProtocol() {
+	}
+
+	// the command with the given opcode (null if there is none)
+	static Command command(int opcode) {
+		int index = opcode - FIRST_COMMAND;
+		return index >= 0 && index < COMMANDS.length ? COMMANDS[index] : null;
+	}
+
+	// reads one frame's body from a blocking stream (null at the end of the stream)
+	static byte[] readFrame(InputStream in) throws IOException {
+		long length = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				if (shift == 0) {
+					return null;
+				}
+				throw new EOFException();
+			}
+			length |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			if (shift > 28) {
+				throw new IOException("Frame length too long");
+			}
+		}
+		if (length > MAX_FRAME_LENGTH) {
+			throw new IOException("Frame of " + length + " bytes is too long");
+		}
+		byte[] body = new byte[(int) length];
+		for (int read = 0; read < body.length; ) {
+			int count = in.read(body, read, body.length - read);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			read += count;
+		}
+		return body;
+	}
+
+	// puts a frame's length in front of its body
+	static byte[] frame(byte[] body) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 3);
+		writeVarint(out, body.length);
+		out.write(body, 0, body.length);
+		return out.toByteArray();
+	}
+
+	static void writeFrame(OutputStream out, byte[] body) throws IOException {
+		out.write(frame(body));
+	}
+
+	static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	// zig-zag encoding keeps small negative numbers short
+	static void writeSigned(ByteArrayOutputStream out, long value) {
+		writeVarint(out, (value << 1) ^ (value >> 63));
+	}
+
+	static void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	// the read methods throw IllegalArgumentException (or BufferUnderflowException) on a malformed frame
+	static long readVarint(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Varint too long");
+	}
+
+	static long readSigned(ByteBuffer in) {
+		long value = readVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	// reads a length or count of items that each take at least one byte of the frame
+	// (a ten-byte varint can decode to a negative number, so that is rejected along with anything too long)
+	static int readLength(ByteBuffer in) {
+		long length = readVarint(in);
+		if (length < 0 || length > in.remaining()) {
+			throw new IllegalArgumentException("Length " + length + " does not fit in the frame");
+		}
+		return (int) length;
+	}
+
+	static String readString(ByteBuffer in) {
+		int length = readLength(in);
+		String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return value;
+	}
+
+}
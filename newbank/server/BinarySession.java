@@ -0,0 +1,232 @@
+package newbank.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+// a client using the binary protocol (see BinaryProtocol), driven one request frame at a time
+// so that it can be used both by a blocking handler thread and by the non-blocking selector server
+public class BinarySession {
+
+	private static final int RESPONSE_CAPACITY = 256;
+	private static final int MAX_RETAINED_RESPONSE_CAPACITY = 1 << 16; // a larger buffer is dropped once it has been sent
+
+	private final NewBank bank;
+	private final Consumer<byte[]> notices; // sends frame bodies the bank pushes to the client
+	private final Consumer<String> noticeListener = this::pushNotice; // registered with the bank while logged in
+	private CustomerID customer;
+	private String sessionToken; // the token of the session this connection is using (null if not logged in)
+	private StringBuilder text = new StringBuilder(RESPONSE_CAPACITY); // the bank's text response, if any
+
+	// notices may be called from any thread, between responses, while a customer is logged in
+	public BinarySession(NewBank bank, Consumer<byte[]> notices) {
+		this.bank = bank;
+		this.notices = notices;
+	}
+
+	// the response to the client switching to the binary protocol
+	public byte[] start() {
+		return response(0, CommandResult.OK).toByteArray();
+	}
+
+	// the client has gone away
+	public void close() {
+		loggedOut(false);
+	}
+
+	private void loggedIn(CustomerID customer, String sessionToken) {
+		loggedOut(false);
+		this.customer = customer;
+		this.sessionToken = sessionToken;
+		bank.addNoticeListener(customer, noticeListener);
+	}
+
+	// endSession is true when the customer logged out, and false when the connection just closed or moved on to
+	// another customer (so the session can still be resumed)
+	private void loggedOut(boolean endSession) {
+		if (customer != null) {
+			bank.removeNoticeListener(customer, noticeListener);
+		}
+		if (sessionToken != null) {
+			if (endSession) {
+				bank.getSessions().close(sessionToken);
+			} else {
+				bank.getSessions().release(sessionToken);
+			}
+		}
+		customer = null;
+		sessionToken = null;
+	}
+
+	private void pushNotice(String notice) {
+		ByteArrayOutputStream out = response(0, BinaryProtocol.NOTICE);
+		BinaryProtocol.writeString(out, notice);
+		notices.accept(out.toByteArray());
+	}
+
+	// handles one request frame and returns the body of the response frame
+	public byte[] handleFrame(byte[] frame) {
+		ByteBuffer in = ByteBuffer.wrap(frame);
+		long requestID = 0;
+		int opcode;
+		String[] arguments;
+		try {
+			requestID = BinaryProtocol.readVarint(in);
+			opcode = in.get() & 0xff;
+			arguments = readArguments(in);
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			return message(requestID, BinaryProtocol.MALFORMED, "The request could not be read.");
+		}
+		if (opcode == BinaryProtocol.LOGIN || opcode == BinaryProtocol.CREATE_CUSTOMER) {
+			return logIn(requestID, opcode, arguments);
+		}
+		if (opcode == BinaryProtocol.RESUME) {
+			return resume(requestID, arguments);
+		}
+		Command command = BinaryProtocol.command(opcode);
+		if (command == null) {
+			return message(requestID, BinaryProtocol.UNKNOWN_OPCODE, "Unknown opcode " + opcode + ".");
+		}
+		if (customer == null) {
+			return message(requestID, BinaryProtocol.NOT_LOGGED_IN, "Log in first.");
+		}
+		if (!validArguments(command, arguments)) {
+			return message(requestID, CommandResult.REJECTED, command == Command.BATCH ?
+					"Each line of a batch must be one line of text." : "Arguments cannot be empty or contain spaces.");
+		}
+		if (text.capacity() > MAX_RETAINED_RESPONSE_CAPACITY) {
+			// don't hold on to the memory used by one very large listing
+			text = new StringBuilder(RESPONSE_CAPACITY);
+		}
+		text.setLength(0);
+		if (command == Command.LOGOUT) {
+			loggedOut(true);
+			return response(requestID, CommandResult.OK).toByteArray();
+		}
+		if (command == Command.BATCH) {
+			CommandResult result = new CommandResult();
+			bank.processBatch(customer, Arrays.asList(arguments), text, result);
+			return message(requestID, result.code, text);
+		}
+		// the request is handed to the bank already split into tokens, with amounts in the form it reads exactly
+		String[] tokens = new String[arguments.length + 1];
+		tokens[0] = command.name();
+		System.arraycopy(arguments, 0, tokens, 1, arguments.length);
+		CommandLine requestParams = new CommandLine(tokens);
+		CommandResult result = new CommandResult();
+		requestParams.setResult(result);
+		bank.processRequest(customer, requestParams, text);
+		ByteArrayOutputStream out = response(requestID, result.code);
+		if (result.hasBalance && result.code != CommandResult.SERVER_ERROR) {
+			BinaryProtocol.writeSigned(out, result.balance);
+		} else if (result.accounts != null) {
+			BinaryProtocol.writeVarint(out, result.accounts.size());
+			for (BankSnapshot.AccountImage account : result.accounts) {
+				out.write(account.kind);
+				BinaryProtocol.writeString(out, account.name);
+				BinaryProtocol.writeString(out, account.sortCode);
+				BinaryProtocol.writeVarint(out, account.number);
+				BinaryProtocol.writeSigned(out, account.balance);
+			}
+		} else {
+			BinaryProtocol.writeString(out, text.toString());
+		}
+		return out.toByteArray();
+	}
+
+	private static String[] readArguments(ByteBuffer in) {
+		String[] arguments = new String[BinaryProtocol.readLength(in)];
+		for (int i = 0; i < arguments.length; i++) {
+			int tag = in.get();
+			switch (tag) {
+				case BinaryProtocol.STRING:
+					arguments[i] = BinaryProtocol.readString(in);
+					break;
+				case BinaryProtocol.AMOUNT:
+					arguments[i] = Money.format(BinaryProtocol.readSigned(in));
+					break;
+				case BinaryProtocol.INTEGER:
+					arguments[i] = Long.toString(BinaryProtocol.readSigned(in));
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown argument tag " + tag);
+			}
+		}
+		return arguments;
+	}
+
+	// commands are journaled as text, so each argument must read back as exactly one token
+	// (or, for a batch, as exactly one line)
+	private static boolean validArguments(Command command, String[] arguments) {
+		for (String argument : arguments) {
+			if (argument.isEmpty()) {
+				return false;
+			}
+			for (int i = 0; i < argument.length(); i++) {
+				char c = argument.charAt(i);
+				if (command == Command.BATCH ? c == '\n' || c == '\r' : Character.isWhitespace(c)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private byte[] logIn(long requestID, int opcode, String[] arguments) {
+		if (arguments.length != 2) {
+			return message(requestID, CommandResult.REJECTED, "Send a user name and a password.");
+		}
+		if (opcode == BinaryProtocol.LOGIN) {
+			CustomerID loggedIn = bank.checkLogInDetails(arguments[0], arguments[1]);
+			if (loggedIn == null) {
+				return message(requestID, CommandResult.REJECTED, "Failed");
+			}
+			return openSession(requestID, loggedIn);
+		}
+		if (!bank.usernameIsAvailable(arguments[0])) {
+			return message(requestID, CommandResult.REJECTED, "Username already taken.");
+		}
+		if (!ClientSession.passwordFollowsRules(arguments[1])) {
+			return message(requestID, CommandResult.REJECTED, "The password must be between 8 and 20 characters long.");
+		}
+		CustomerID created = bank.createNewCustomer(arguments[0], arguments[1]);
+		if (created == null) {
+			return message(requestID, CommandResult.REJECTED, "Failed");
+		}
+		return openSession(requestID, created);
+	}
+
+	private byte[] openSession(long requestID, CustomerID customer) {
+		String token = bank.getSessions().open(customer);
+		loggedIn(customer, token);
+		return message(requestID, CommandResult.OK, token);
+	}
+
+	private byte[] resume(long requestID, String[] arguments) {
+		if (arguments.length != 1) {
+			return message(requestID, CommandResult.REJECTED, "Send a session token.");
+		}
+		CustomerID resumed = bank.getSessions().resume(arguments[0]);
+		if (resumed == null) {
+			return message(requestID, CommandResult.REJECTED, "Session has ended. Please log in again.");
+		}
+		loggedIn(resumed, arguments[0]);
+		return response(requestID, CommandResult.OK).toByteArray();
+	}
+
+	private static ByteArrayOutputStream response(long requestID, byte code) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(RESPONSE_CAPACITY);
+		BinaryProtocol.writeVarint(out, requestID);
+		out.write(code);
+		return out;
+	}
+
+	private static byte[] message(long requestID, byte code, CharSequence message) {
+		ByteArrayOutputStream out = response(requestID, code);
+		BinaryProtocol.writeString(out, message.toString());
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,296 @@
+package newbank.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// the login / create account conversation with a single client, driven one input line at a time
+// so that it can be used both by a blocking handler thread and by the non-blocking selector server
+// a client that sends PIPELINE as its first line switches to pipelined mode: from then on each line it sends starts
+// with an ID of its choosing ("<id> <command>"), and each response is framed as a header line "<id> <line count>"
+// followed by that many lines, so the client can send many commands without waiting and match up the responses
+// (ID 0 is the reply to PIPELINE itself, and * marks a notice pushed by the bank)
+// logging in gives the client a session token; a client that reconnects can send "RESUME <token>" in place of
+// answering whether it has an account, and carries on as the same customer without logging in again
+public class ClientSession {
+
+    private static final String ASK_FOR_ACCOUNT = "Do you have an account with us? Please enter Y or N";
+    private static final String SUCCESS = "Success! What do you want to do next?";
+    private static final int RESPONSE_CAPACITY = 256;
+    static final int MAX_LINE_LENGTH = 8192; // connections sending longer lines are dropped
+    private static final int MAX_RETAINED_RESPONSE_CAPACITY = 1 << 16; // a larger buffer is dropped once it has been sent
+    private static final String PIPELINE = "PIPELINE";
+    private static final String NEGOTIATION_ID = "0";
+    private static final String NOTICE_ID = "*";
+    private static final String RESUME = "RESUME ";
+
+    private enum State {
+        ASK_HAS_ACCOUNT,
+        LOGIN_USERNAME,
+        LOGIN_PASSWORD,
+        CREATE_USERNAME,
+        CREATE_PASSWORD,
+        REQUESTS,
+        BATCH, // collecting the lines of a batch until END
+        CLOSED
+    }
+
+    private final NewBank bank;
+    private State state;
+    private String userName;
+    private CustomerID customer;
+    private String sessionToken; // the token of the session this connection is using (null if not logged in)
+    private StringBuilder response = new StringBuilder(RESPONSE_CAPACITY); // reused for every request's response
+    private final Consumer<String> notices; // sends messages the bank pushes to the client (null if not supported)
+    private final Consumer<String> noticeListener = this::pushNotice; // registered with the bank while logged in
+    private volatile boolean pipelined; // read by the bank's threads when a notice is pushed
+    private final List<String> batch = new ArrayList<>(); // the lines received since BATCH
+    private int batchLength; // characters received since BATCH, including any lines dropped for being over the limit
+
+    public ClientSession(NewBank bank) {
+        this(bank, null);
+    }
+
+    // notices may be called from any thread, between responses, while a customer is logged in
+    public ClientSession(NewBank bank, Consumer<String> notices) {
+        this.bank = bank;
+        this.notices = notices;
+        this.state = State.ASK_HAS_ACCOUNT;
+    }
+
+    private void loggedIn(CustomerID customer, String sessionToken) {
+        this.customer = customer;
+        this.sessionToken = sessionToken;
+        state = State.REQUESTS;
+        if (notices != null) {
+            bank.addNoticeListener(customer, noticeListener);
+        }
+    }
+
+    // endSession is true when the customer logged out, and false when the connection just closed (so the session
+    // can still be resumed)
+    private void loggedOut(boolean endSession) {
+        if (customer != null && notices != null) {
+            bank.removeNoticeListener(customer, noticeListener);
+        }
+        if (sessionToken != null) {
+            if (endSession) {
+                bank.getSessions().close(sessionToken);
+            } else {
+                bank.getSessions().release(sessionToken);
+            }
+        }
+        customer = null;
+        sessionToken = null;
+    }
+
+    private boolean yesNoUserInput(String userInput) {
+        return userInput.equals("y") || userInput.equals("n");
+    }
+
+    static boolean passwordFollowsRules(String password) {
+        return password.length() > 7 && password.length() < 21;
+    }
+
+    // the first message sent to a newly connected client
+    public String start() {
+        state = State.ASK_HAS_ACCOUNT;
+        return ASK_FOR_ACCOUNT;
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    public CustomerID getCustomer() {
+        return customer;
+    }
+
+    // the client has gone away - no further input will be accepted
+    public void close() {
+        state = State.CLOSED;
+        loggedOut(false);
+    }
+
+    private void pushNotice(String notice) {
+        notices.accept(pipelined ? frame(NOTICE_ID, notice).toString() : notice);
+    }
+
+    // handles one line of client input and returns the (possibly multi-line) response to send back (null if the
+    // line gets no response of its own)
+    // the response may be this session's reusable buffer, so it must be sent before the next line is handled
+    public CharSequence handleLine(String line) {
+        if (line == null) {
+            close();
+            return null;
+        }
+        if (!pipelined) {
+            if (state == State.ASK_HAS_ACCOUNT && line.equals(PIPELINE)) {
+                pipelined = true;
+                return frame(NEGOTIATION_ID, "Pipelined mode on. Start each line with an ID. " + ASK_FOR_ACCOUNT);
+            }
+            return handleRequestLine(line);
+        }
+        int space = line.indexOf(' ');
+        String id = space < 0 ? line : line.substring(0, space);
+        CharSequence response = handleRequestLine(space < 0 ? "" : line.substring(space + 1));
+        return response == null ? null : frame(id, response);
+    }
+
+    // puts the "<id> <line count>" header in front of a response; the session's own buffer is framed in place
+    private CharSequence frame(String id, CharSequence response) {
+        int lines = 1;
+        for (int i = 0; i < response.length(); i++) {
+            if (response.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        String header = id + " " + lines + "\n";
+        if (response == this.response) {
+            return this.response.insert(0, header);
+        }
+        return new StringBuilder(header.length() + response.length()).append(header).append(response);
+    }
+
+    private CharSequence handleRequestLine(String line) {
+        switch (state) {
+            case ASK_HAS_ACCOUNT:
+                if (line.startsWith(RESUME)) {
+                    return resumeSession(line.substring(RESUME.length()).trim());
+                }
+                return askDoesClientHaveAccount(line.toLowerCase());
+            case LOGIN_USERNAME:
+                userName = line;
+                state = State.LOGIN_PASSWORD;
+                return "Enter Password";
+            case LOGIN_PASSWORD:
+                return loginUser(line);
+            case CREATE_USERNAME:
+                return chooseUsername(line);
+            case CREATE_PASSWORD:
+                return choosePassword(line);
+            case REQUESTS:
+                if (line.trim().equals("BATCH")) {
+                    state = State.BATCH;
+                    return null;
+                }
+                return processUserRequest(line);
+            case BATCH:
+                return addToBatch(line);
+            default:
+                return null;
+        }
+    }
+
+    private String askDoesClientHaveAccount(String userInput) {
+        if (!yesNoUserInput(userInput)) {
+            //incorrect response given - wait for a correct response before continuing
+            return "Please enter Y or N";
+        }
+        if (userInput.equals("y")) {
+            state = State.LOGIN_USERNAME;
+            return "Enter Username";
+        }
+        state = State.CREATE_USERNAME;
+        return "Enter Username to create account";
+    }
+
+    private String resumeSession(String token) {
+        CustomerID resumed = bank.getSessions().resume(token);
+        if (resumed == null) {
+            return "Session has ended. Please log in again.\n" + ASK_FOR_ACCOUNT;
+        }
+        loggedIn(resumed, token);
+        return "Session resumed.\n" + SUCCESS;
+    }
+
+    // the line that gives a newly logged in client its token
+    private static String sessionLine(String token) {
+        return "Session token: " + token + "\n";
+    }
+
+    private String loginUser(String password) {
+        // authenticate user and get customer ID token from bank for use in subsequent requests
+        CustomerID loggedIn = bank.checkLogInDetails(userName, password);
+        userName = null;
+        if (loggedIn == null) {
+            state = State.LOGIN_USERNAME;
+            return "Checking Details...\nFailed\nEnter Username";
+        }
+        String token = bank.getSessions().open(loggedIn);
+        loggedIn(loggedIn, token);
+        return "Checking Details...\n" + sessionLine(token) + SUCCESS;
+    }
+
+    private String chooseUsername(String name) {
+        //make sure you aren't going to overwrite a previous customer
+        if (!bank.usernameIsAvailable(name)) {
+            return "Username already taken. Please choose a different username";
+        }
+        userName = name;
+        state = State.CREATE_PASSWORD;
+        return "Enter Password of length between 8 - 20 characters";
+    }
+
+    private String choosePassword(String password) {
+        if (!passwordFollowsRules(password)) {
+            return "Password could not be set. Please enter a password of length between 8 - 20 characters.";
+        }
+        CustomerID created = bank.createNewCustomer(userName, password);
+        userName = null;
+        if (created == null) {
+            state = State.CREATE_USERNAME;
+            return "Failed\nEnter Username to create account";
+        }
+        String token = bank.getSessions().open(created);
+        loggedIn(created, token);
+        return sessionLine(token) + SUCCESS;
+    }
+
+    private void resetResponse() {
+        if (response.capacity() > MAX_RETAINED_RESPONSE_CAPACITY) {
+            // don't hold on to the memory used by one very large listing
+            response = new StringBuilder(RESPONSE_CAPACITY);
+        }
+        response.setLength(0);
+    }
+
+    // nothing is sent back until END, when the whole batch runs as one request and gets one response
+    // once the batch is over the bank's limit further lines are only counted, so the bank rejects it without
+    // the session holding on to them
+    private CharSequence addToBatch(String line) {
+        if (!line.trim().equals("END")) {
+            if (!line.trim().isEmpty()) {
+                batchLength += line.length() + 1;
+                if (batchLength <= NewBank.maxBatchLength) {
+                    batch.add(line);
+                }
+            }
+            return null;
+        }
+        resetResponse();
+        if (batchLength > NewBank.maxBatchLength) {
+            response.append("Batch rejected - no changes were made.\nA batch can be at most ")
+                    .append(NewBank.maxBatchLength).append(" characters long.");
+        } else {
+            bank.processBatch(customer, batch, response);
+        }
+        batch.clear();
+        batchLength = 0;
+        state = State.REQUESTS;
+        return response;
+    }
+
+    private CharSequence processUserRequest(String request) {
+        resetResponse();
+        bank.processRequest(customer, request, response);
+        if ("LOGOUT".contentEquals(response)) {
+            // return to the start of the conversation so another customer can log in
+            loggedOut(true);
+            state = State.ASK_HAS_ACCOUNT;
+            return "Logging out...\n" + ASK_FOR_ACCOUNT;
+        }
+        return response;
+    }
+
+}
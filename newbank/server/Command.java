@@ -0,0 +1,112 @@
+package newbank.server;
+
+// every command a logged-in customer can send, with how the bank has to run it
+// verbs are looked up straight from the request line through a fixed hash table, without creating a String
+public enum Command {
+
+	HELP(false, false),
+	SHOWMYACCOUNTS(false, false),
+	NEWSAVINGSACCOUNT(true, true),
+	NEWCHECKINGACCOUNT(true, true),
+	RENAMEACCOUNT(true, false),
+	DEPOSIT(true, false, true),
+	SETOVERDRAFT(true, false),
+	CHECKOVERDRAFT(false, false),
+	MOVE(true, false, true),
+	PAY(true, false, true),
+	PAYACCOUNT(true, false, true),
+	OFFERLOAN(true, true),
+	REQUESTLOAN(true, true),
+	SHOWLOANS(false, false),
+	LENDTO(true, true),
+	BORROWFROM(true, true),
+	REPAY(true, false),
+	REMOVELOAN(true, true),
+	TIMETRAVEL(true, true),
+	LOGOUT(false, false),
+	SHOWCONTACTDETAILS(false, false),
+	CHANGEPOSTCODE(true, false),
+	CHANGEMYADDRESS(true, false),
+	CHANGEMYEMAIL(true, false),
+	CHANGEMYMOBILE(true, false),
+	CHANGEMYLANDLINE(true, false),
+	PROMOTE(true, false),
+	DEMOTE(true, false),
+	CHECKPERMISSIONS(false, false),
+	STATS(false, false),
+	BATCH(true, false); // the commands on the lines up to END are run as one unit (see ClientSession)
+
+	private static final int TABLE_SIZE = 128; // a power of two, well over twice the number of commands
+	private static final Command[] TABLE = new Command[TABLE_SIZE];
+
+	static {
+		for (Command command : values()) {
+			String verb = command.name();
+			int slot = hash(verb, 0, verb.length());
+			while (TABLE[slot] != null) {
+				slot = (slot + 1) & (TABLE_SIZE - 1);
+			}
+			TABLE[slot] = command;
+		}
+	}
+
+	private final boolean journaled; // changes bank state, so is written to the journal
+	private final boolean bankWide; // uses bank-wide state (account numbers, loan IDs, marketplaces, calendar)
+	private final boolean batchable; // a payment or transfer that can be part of a BATCH
+
+	Command(boolean journaled, boolean bankWide) {
+		this(journaled, bankWide, false);
+	}
+
+	Command(boolean journaled, boolean bankWide, boolean batchable) {
+		this.journaled = journaled;
+		this.bankWide = bankWide;
+		this.batchable = batchable;
+	}
+
+	public boolean isJournaled() {
+		return journaled;
+	}
+
+	public boolean isBankWide() {
+		return bankWide;
+	}
+
+	public boolean isBatchable() {
+		return batchable;
+	}
+
+	// finds the command named by text[start, end) (null if there is no such command)
+	public static Command lookup(CharSequence text, int start, int end) {
+		int slot = hash(text, start, end);
+		Command command;
+		while ((command = TABLE[slot]) != null) {
+			if (matches(command.name(), text, start, end)) {
+				return command;
+			}
+			slot = (slot + 1) & (TABLE_SIZE - 1);
+		}
+		return null;
+	}
+
+	private static int hash(CharSequence text, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + text.charAt(i);
+		}
+		return (hash ^ (hash >>> 7)) & (TABLE_SIZE - 1);
+	}
+
+	private static boolean matches(String verb, CharSequence text, int start, int end) {
+		if (verb.length() != end - start) {
+			return false;
+		}
+		for (int i = 0; i < verb.length(); i++) {
+			if (verb.charAt(i) != text.charAt(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
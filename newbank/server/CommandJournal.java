@@ -0,0 +1,325 @@
+package newbank.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// write-ahead log of every state-changing command accepted by the bank
+// sessions append entries to an in-memory queue and a single writer thread writes them to disk; with the
+// BATCHED policy one fsync covers every entry queued while the previous fsync was running (group commit)
+public class CommandJournal {
+
+	// how long a session waits before its response is sent
+	public enum SyncPolicy {
+		PER_COMMAND, // every entry gets its own fsync before its session continues
+		BATCHED, // entries queued together share one fsync before their sessions continue
+		ASYNC // sessions do not wait; entries are written and synced in the background
+	}
+
+	public static final byte NEW_CUSTOMER = 1;
+	public static final byte REQUEST = 2;
+	public static final byte END_OF_DAY = 3; // the text is the day the batch started from
+	public static final byte BATCH = 4; // the text is the batch's commands, one per line
+
+	// one journal record: the bank date the command ran at, the customer, and the command (or password)
+	public static class Entry {
+		public final byte type;
+		public final long date;
+		public final String customer;
+		public final String text;
+
+		public Entry(byte type, long date, String customer, String text) {
+			this.type = type;
+			this.date = date;
+			this.customer = customer;
+			this.text = text;
+		}
+	}
+
+	private final FileChannel channel;
+	private final SyncPolicy policy;
+	private final long maxBatchDelayNanos;
+	private final int maxBatchSize;
+	private final Thread writer;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition entriesQueued = lock.newCondition();
+	private final Condition entriesSynced = lock.newCondition();
+	private ArrayList<byte[]> queue = new ArrayList<>(); // guarded by lock
+	private long appendedSequence; // guarded by lock - last entry queued
+	private long syncedSequence; // guarded by lock - last entry known to be on disk
+	private IOException failure = null; // guarded by lock
+	private boolean closed = false; // guarded by lock
+
+	// entriesInFile is the number of entries already in the file, so that sequence numbers are positions in the file
+	public CommandJournal(Path file, long entriesInFile, SyncPolicy policy, long maxBatchDelayMicros, int maxBatchSize)
+			throws IOException {
+		this.appendedSequence = entriesInFile;
+		this.syncedSequence = entriesInFile;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		this.policy = policy;
+		this.maxBatchDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxBatchDelayMicros);
+		this.maxBatchSize = policy == SyncPolicy.PER_COMMAND ? 1 : maxBatchSize;
+		this.writer = new Thread(this::writeEntries, "NewBank journal writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	// queues an entry and returns its sequence number for awaitDurable
+	// callers that need entries replayed in the order they ran must append while still holding their locks
+	public long append(Entry entry) {
+		byte[] record = encode(entry);
+		lock.lock();
+		try {
+			queue.add(record);
+			appendedSequence++;
+			entriesQueued.signal();
+			return appendedSequence;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// the number of entries queued so far, including those already in the file when it was opened
+	public long getAppendedSequence() {
+		lock.lock();
+		try {
+			return appendedSequence;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// waits, according to the sync policy, until the entry with the given sequence number is on disk
+	// returns false if the journal can no longer be written
+	public boolean awaitDurable(long sequence) {
+		if (policy == SyncPolicy.ASYNC) {
+			lock.lock();
+			try {
+				return failure == null;
+			} finally {
+				lock.unlock();
+			}
+		}
+		return awaitSynced(sequence);
+	}
+
+	// waits until the entry with the given sequence number is on disk, whatever the sync policy
+	// returns false if the journal can no longer be written
+	public boolean awaitSynced(long sequence) {
+		lock.lock();
+		try {
+			while (syncedSequence < sequence && failure == null) {
+				entriesSynced.awaitUninterruptibly();
+			}
+			return syncedSequence >= sequence;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// flushes anything still queued and stops the writer thread
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			closed = true;
+			entriesQueued.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+	}
+
+	private void writeEntries() {
+		while (true) {
+			ArrayList<byte[]> batch;
+			long batchSequence;
+			lock.lock();
+			try {
+				while (queue.isEmpty() && !closed) {
+					entriesQueued.awaitUninterruptibly();
+				}
+				if (queue.isEmpty()) {
+					return;
+				}
+				// give other sessions a short window to join this fsync
+				long waitNanos = maxBatchDelayNanos;
+				while (queue.size() < maxBatchSize && waitNanos > 0 && !closed) {
+					try {
+						waitNanos = entriesQueued.awaitNanos(waitNanos);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+				if (queue.size() <= maxBatchSize) {
+					batch = queue;
+					queue = new ArrayList<>();
+				} else {
+					batch = new ArrayList<>(queue.subList(0, maxBatchSize));
+					queue = new ArrayList<>(queue.subList(maxBatchSize, queue.size()));
+				}
+				batchSequence = appendedSequence - queue.size();
+			} finally {
+				lock.unlock();
+			}
+			IOException error = null;
+			try {
+				write(batch);
+			} catch (IOException e) {
+				e.printStackTrace();
+				error = e;
+			}
+			lock.lock();
+			try {
+				if (error != null) {
+					failure = error;
+				} else {
+					syncedSequence = batchSequence;
+				}
+				entriesSynced.signalAll();
+				if (error != null) {
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void write(ArrayList<byte[]> batch) throws IOException {
+		int size = 0;
+		for (byte[] record : batch) {
+			size += record.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (byte[] record : batch) {
+			buffer.put(record);
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		channel.force(false);
+	}
+
+	// record layout: length, CRC32 of the body, then the body (type, date, customer, text)
+	// strings are written as a length and UTF-8 bytes, as writeUTF cannot write more than 64 KB
+	private static byte[] encode(Entry entry) {
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(body);
+			out.writeByte(entry.type);
+			out.writeLong(entry.date);
+			writeString(out, entry.customer);
+			writeString(out, entry.text);
+			byte[] bytes = body.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+			record.putInt(bytes.length);
+			record.putInt((int) crc.getValue());
+			record.put(bytes);
+			return record.array();
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // cannot happen when writing to memory
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > in.available()) {
+			throw new EOFException("String longer than the record");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// reads every complete entry in a journal file, stopping at a torn or corrupt record left by a crash
+	// the first skip entries (already covered by a snapshot) are read but not passed on
+	// returns the number of entries in the file
+	public static long replay(Path file, long skip, Consumer<Entry> consumer) throws IOException {
+		if (!Files.exists(file)) {
+			return 0;
+		}
+		long count = 0;
+		long validLength = 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			InputStream stream = Channels.newInputStream(channel);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+			while (true) {
+				int length;
+				int checksum;
+				byte[] bytes;
+				try {
+					length = in.readInt();
+					checksum = in.readInt();
+					if (length < 0 || length > 1 << 20) {
+						break;
+					}
+					bytes = new byte[length];
+					in.readFully(bytes);
+				} catch (EOFException e) {
+					break;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(bytes);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				if (count >= skip) {
+					consumer.accept(decode(bytes));
+				}
+				validLength += 8 + length;
+				count++;
+			}
+		}
+		// drop any partial record so that new entries are appended after the last good one
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			if (channel.size() > validLength) {
+				System.out.println("Discarding " + (channel.size() - validLength) + " bytes of incomplete journal");
+				channel.truncate(validLength);
+			}
+		}
+		return count;
+	}
+
+	private static Entry decode(byte[] bytes) throws IOException {
+		DataInputStream body = new DataInputStream(new ByteArrayInputStream(bytes));
+		byte type = body.readByte();
+		long date = body.readLong();
+		String customer = readString(body);
+		String text = readString(body);
+		return new Entry(type, date, customer, text);
+	}
+
+}
@@ -0,0 +1,157 @@
+package newbank.server;
+
+import java.util.Arrays;
+import java.util.Date;
+
+// a request line split into whitespace-separated tokens without copying it
+// tokens are kept as positions in the line; a token only becomes a String when a handler asks for one,
+// and amounts and numbers are parsed straight from the line's characters
+public final class CommandLine {
+
+	private final String line;
+	private int[] bounds = new int[16]; // start and end of each token, in pairs
+	private int size;
+	private String[] tokens; // tokens that have been turned into Strings (created on first use)
+	private final Command command;
+	private CommandResult result; // filled in by the command's handler, if the client wants one (null if not)
+	private Date date; // the bank date the command runs at, as written to the journal (set by the bank)
+
+	public CommandLine(String line) {
+		this.line = line;
+		int length = line.length();
+		int i = 0;
+		while (true) {
+			while (i < length && isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			if (i == length) {
+				break;
+			}
+			int start = i;
+			while (i < length && !isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			if (2 * size == bounds.length) {
+				bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+			}
+			bounds[2 * size] = start;
+			bounds[2 * size + 1] = i;
+			size++;
+		}
+		command = size > 0 ? Command.lookup(line, bounds[0], bounds[1]) : null;
+	}
+
+	// a request built by the bank itself from tokens that may contain spaces (e.g. an account name)
+	CommandLine(String... tokens) {
+		StringBuilder joined = new StringBuilder();
+		bounds = new int[Math.max(2, 2 * tokens.length)];
+		for (int i = 0; i < tokens.length; i++) {
+			if (i > 0) {
+				joined.append(' ');
+			}
+			bounds[2 * i] = joined.length();
+			joined.append(tokens[i]);
+			bounds[2 * i + 1] = joined.length();
+		}
+		this.line = joined.toString();
+		this.size = tokens.length;
+		this.tokens = tokens.clone();
+		this.command = size > 0 ? Command.lookup(line, bounds[0], bounds[1]) : null;
+	}
+
+	// the same characters as String.split("\\s+") treats as whitespace
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	public String getLine() {
+		return line;
+	}
+
+	public CommandResult getResult() {
+		return result;
+	}
+
+	void setResult(CommandResult result) {
+		this.result = result;
+	}
+
+	public Date getDate() {
+		return date;
+	}
+
+	void setDate(Date date) {
+		this.date = date;
+	}
+
+	// the command named by the first token (null if it is not a command)
+	public Command getCommand() {
+		return command;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String get(int index) {
+		if (index >= size) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		if (tokens == null) {
+			tokens = new String[size];
+		}
+		String token = tokens[index];
+		if (token == null) {
+			token = line.substring(bounds[2 * index], bounds[2 * index + 1]);
+			tokens[index] = token;
+		}
+		return token;
+	}
+
+	// whether the token exists and is the given text
+	public boolean tokenEquals(int index, String text) {
+		if (index >= size) {
+			return false;
+		}
+		int start = bounds[2 * index];
+		return bounds[2 * index + 1] - start == text.length() && line.regionMatches(start, text, 0, text.length());
+	}
+
+	// parses an amount in pounds (e.g. "12.34") into pence; throws NumberFormatException if it is not one
+	public long getAmount(int index) {
+		return Money.parse(line, bounds[2 * index], bounds[2 * index + 1]);
+	}
+
+	// parses a whole number; throws NumberFormatException if it is not one or does not fit in an int
+	public int getInt(int index) {
+		int start = bounds[2 * index];
+		int end = bounds[2 * index + 1];
+		boolean negative = line.charAt(start) == '-';
+		int i = negative || line.charAt(start) == '+' ? start + 1 : start;
+		if (i == end) {
+			throw new NumberFormatException("Not a number: " + get(index));
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') {
+				throw new NumberFormatException("Not a number: " + get(index));
+			}
+			value = value * 10 + (c - '0');
+			if (value > (long) Integer.MAX_VALUE + 1) {
+				throw new NumberFormatException("Number out of range: " + get(index));
+			}
+		}
+		value = negative ? -value : value;
+		if (value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("Number out of range: " + get(index));
+		}
+		return (int) value;
+	}
+
+	// whether the token is a number such as "12", "-3" or "4.50"
+	public boolean isNumber(int index) {
+		return Validators.isNumber(line, bounds[2 * index], bounds[2 * index + 1]);
+	}
+
+}
@@ -0,0 +1,25 @@
+package newbank.server;
+
+import java.util.List;
+
+// what a command did, in a form a program can use without reading the response text
+// a client of the binary protocol attaches one to its request; the handlers that can report a result fill it in
+// (the payment and transfer commands and SHOWMYACCOUNTS), and skip building their text response
+// a BATCH reports only its code, alongside its usual text
+public final class CommandResult {
+
+	public static final byte OK = 0;
+	public static final byte REJECTED = 1; // the request was not valid, or not allowed
+	public static final byte INSUFFICIENT_FUNDS = 2;
+	public static final byte SERVER_ERROR = 3; // the command could not be written to the journal
+
+	byte code = OK;
+	boolean hasBalance; // whether balance has been set
+	long balance; // pence left in the paying account after a payment or transfer (or before one that was short)
+	List<BankSnapshot.AccountImage> accounts; // the customer's accounts (SHOWMYACCOUNTS)
+
+	public byte getCode() {
+		return code;
+	}
+
+}
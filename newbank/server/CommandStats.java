@@ -0,0 +1,79 @@
+package newbank.server;
+
+// latency histograms for each command the bank accepts, split into time spent waiting for locks and time spent running
+public class CommandStats {
+
+	private static final String OTHER = "OTHER"; // unrecognised commands share one entry
+
+	// the histograms for one command
+	public static class Timings {
+		final LatencyHistogram total = new LatencyHistogram(); // whole request, including waiting for the journal
+		final LatencyHistogram lockWait = new LatencyHistogram();
+		final LatencyHistogram execute = new LatencyHistogram();
+
+		public void record(long lockWaitNanos, long executeNanos, long totalNanos) {
+			lockWait.record(lockWaitNanos);
+			execute.record(executeNanos);
+			total.record(totalNanos);
+		}
+	}
+
+	// one entry per command, indexed by the command's ordinal, followed by the entry for unrecognised commands
+	private final Timings[] timings = new Timings[Command.values().length + 1];
+
+	public CommandStats() {
+		for (int i = 0; i < timings.length; i++) {
+			timings[i] = new Timings();
+		}
+	}
+
+	// the timings for a command (null for an unrecognised command)
+	public Timings forCommand(Command command) {
+		return timings[command != null ? command.ordinal() : timings.length - 1];
+	}
+
+	public void reset() {
+		for (Timings commandTimings : timings) {
+			commandTimings.total.reset();
+			commandTimings.lockWait.reset();
+			commandTimings.execute.reset();
+		}
+	}
+
+	// a table of every command that has been used, with latencies in milliseconds
+	public String report() {
+		StringBuilder report = new StringBuilder("Command latency (ms)\n--------------------");
+		boolean any = false;
+		for (Command command : Command.values()) {
+			any |= appendTimings(report, command.name(), forCommand(command));
+		}
+		any |= appendTimings(report, OTHER, forCommand(null));
+		if (!any) {
+			report.append("\nNo commands have been processed yet.");
+		}
+		return report.toString();
+	}
+
+	private static boolean appendTimings(StringBuilder report, String command, Timings commandTimings) {
+		long count = commandTimings.total.getCount();
+		if (count == 0) {
+			return false;
+		}
+		report.append('\n').append(command).append(": ").append(count).append(" requests")
+				.append("\n  total     ").append(percentiles(commandTimings.total))
+				.append("\n  lock wait ").append(percentiles(commandTimings.lockWait))
+				.append("\n  execute   ").append(percentiles(commandTimings.execute));
+		return true;
+	}
+
+	private static String percentiles(LatencyHistogram histogram) {
+		return String.format("p50 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+				millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+				millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMax()));
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+}
@@ -2,12 +2,31 @@ package newbank.server;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Customer {
+
+	private static final AtomicLong nextLockOrder = new AtomicLong();
+
+	// guards this customer's details, accounts and loan lists (see NewBank.processRequest)
+	private final ReentrantLock lock = new ReentrantLock();
+	private final long lockOrder = nextLockOrder.getAndIncrement(); // customers are always locked in this order
+	private final List<Consumer<String>> noticeListeners = new CopyOnWriteArrayList<>(); // one for each logged-in session
+	private long snapshotEpoch = 0; // the latest snapshot that has copied (or need not copy) this customer
 	
 	private ArrayList<Account> accounts;
+	private HashMap<String, Account> accountsByName; // index over accounts - kept in step by addAccount / renameAccount
 	private ArrayList<Loan> currentLoansOffered; // keep a record of all loans currently offered to other customers
 	private ArrayList<Loan> currentLoansReceived; // keep a record of all outstanding loans to be paid back
+	// running totals in pence, so that eligibility checks do not have to add up every account and loan
+	private final AtomicLong totalFunds = new AtomicLong(); // kept in step by the accounts themselves
+	private long totalLoansOffered; // kept in step with currentLoansOffered
+	private long totalLoansReceived; // kept in step with currentLoansReceived
 	private String password;
 
 	private Boolean isAdmin = false;
@@ -79,30 +98,34 @@ public class Customer {
 
 	public Customer(String password) {
 		accounts = new ArrayList<>();
+		accountsByName = new HashMap<>();
 		currentLoansOffered = new ArrayList<>();
 		currentLoansReceived = new ArrayList<>();
 		setPassword(password);
 	}
 	
 	public String accountsToString() {
-		String s = "";
+		return appendAccounts(new StringBuilder()).toString();
+	}
+
+	// writes one line per account into a response
+	public StringBuilder appendAccounts(StringBuilder out) {
 		boolean first = true;
 		for(Account a : accounts) {
 			if(!first) {
-				s += "\n";
+				out.append('\n');
 			} else {
 				first = false;
 			}
-			s += a.toString();
+			a.appendTo(out);
 		}
-		return s;
+		return out;
 	}
 
 	public String accountBalance(String accName) {
-		for(Account a:accounts) {
-			if(a.getName() == accName) {
-				return Double.toString(a.getBalance());
-			}
+		Account a = accountsByName.get(accName);
+		if(a != null) {
+			return Double.toString(a.getBalance());
 		}
 		return "Account does not exist";
 	}
@@ -119,50 +142,97 @@ public class Customer {
 		return password;
 	}
 
-	public void addAccount(Account account) {
-		accounts.add(account);		
+	// adds an account unless the customer already has an account with the same name
+	public boolean addAccount(Account account) {
+		if(accountsByName.putIfAbsent(account.getName(), account) != null) {
+			return false;
+		}
+		account.setOwner(this);
+		accounts.add(account);
+		totalFunds.addAndGet(account.getBalancePence());
+		return true;
+	}
+
+	// renames an account, provided that the new name is not already in use
+	public boolean renameAccount(String currentName, String newName) {
+		Account account = accountsByName.get(currentName);
+		if(account == null || accountsByName.containsKey(newName)) {
+			return false;
+		}
+		accountsByName.remove(currentName);
+		account.setName(newName);
+		accountsByName.put(newName, account);
+		return true;
+	}
+
+	public void lock() {
+		lock.lock();
+	}
+
+	public void unlock() {
+		lock.unlock();
+	}
+
+	public boolean isLockedByCurrentThread() {
+		return lock.isHeldByCurrentThread();
+	}
+
+	public void addNoticeListener(Consumer<String> listener) {
+		noticeListeners.add(listener);
+	}
+
+	public void removeNoticeListener(Consumer<String> listener) {
+		noticeListeners.remove(listener);
+	}
+
+	// pushes a message to every session the customer is logged in to
+	public void notifySessions(String notice) {
+		for (Consumer<String> listener : noticeListeners) {
+			listener.accept(notice);
+		}
+	}
+
+	public long getLockOrder() {
+		return lockOrder;
+	}
+
+	public long getSnapshotEpoch() {
+		return snapshotEpoch;
+	}
+
+	public void setSnapshotEpoch(long snapshotEpoch) {
+		this.snapshotEpoch = snapshotEpoch;
+	}
+
+	// called by one of the customer's accounts whenever its balance changes
+	void fundsChanged(long pence) {
+		totalFunds.addAndGet(pence);
 	}
 
 	// return the total amount of money held across all of the customer's accounts
 	public double getTotalFunds() {
-		double totalFunds = 0;
-		for (Account account : accounts) {
-			totalFunds += account.getBalance();
-		}
-		return totalFunds;
+		return Money.toPounds(totalFunds.get());
 	}
 
 	// return the total amount of money loaned to other customers
 	public double getTotalLoansOffered() {
-		double totalLoansOffered = 0;
-		for (Loan loan : currentLoansOffered) {
-			totalLoansOffered += loan.getLoanValue();
-		}
-		return totalLoansOffered;
+		return Money.toPounds(totalLoansOffered);
 	}
 
 	// return the total amount of money borrowed from other customers
 	public double getTotalLoansReceived() {
-		double totalLoansReceived = 0;
-		for (Loan loan : currentLoansReceived) {
-			totalLoansReceived += loan.getLoanValue();
-		}
-		return totalLoansReceived;
+		return Money.toPounds(totalLoansReceived);
 	}
 
 	// return a requested customer account if it exists (or null if not)
 	public Account getAccount(String accountName) {
-		for(Account account : accounts) {
-			if(account.getName().equals(accountName)) {
-				return account;
-			}
-		}
-		return null;
+		return accountsByName.get(accountName);
 	}
 
 	// add a loan to the customer account in which the customer is the lender
 	public void offerLoan(Loan newLoan) {
 		currentLoansOffered.add(newLoan);
+		totalLoansOffered += newLoan.getLoanValuePence();
 	}
 
 	// return the number of loans currently offered by the customer
@@ -175,21 +245,38 @@ public class Customer {
 	}
 
 	public void setAccounts(ArrayList<Account> accounts) {
-		this.accounts = accounts;
+		this.accounts = new ArrayList<>();
+		this.accountsByName = new HashMap<>();
+		totalFunds.set(0);
+		for(Account account : accounts) {
+			addAccount(account);
+		}
 	}
 
 	// display details about the loans currently offered by the customer
 	public String showLoansOffered(Date currentDate) {
-		String loanList = "";
+		return appendLoansOffered(new StringBuilder(), currentDate).toString();
+	}
+
+	public StringBuilder appendLoansOffered(StringBuilder out, Date currentDate) {
 		for (Loan loan : currentLoansOffered) {
-			loanList += "\n" + loan.displayLenderDetails(currentDate);
+			loan.appendLenderDetails(out.append('\n'), currentDate);
 		}
-		return loanList;
+		return out;
+	}
+
+	public ArrayList<Loan> getLoansOffered() {
+		return currentLoansOffered;
+	}
+
+	public ArrayList<Loan> getLoansReceived() {
+		return currentLoansReceived;
 	}
 
 	// add a loan to the customer account in which the customer is the borrower
 	public void receiveLoan(Loan newLoan) {
 		currentLoansReceived.add(newLoan);
+		totalLoansReceived += newLoan.getLoanValuePence();
 	}
 
 	// return the number of loans the customer currently has to repay
@@ -199,11 +286,14 @@ public class Customer {
 
 	// display details about the loans that the customer has to repay
 	public String showLoansReceived(Date currentDate) {
-		String loanList = "";
+		return appendLoansReceived(new StringBuilder(), currentDate).toString();
+	}
+
+	public StringBuilder appendLoansReceived(StringBuilder out, Date currentDate) {
 		for (Loan loan : currentLoansReceived) {
-			loanList += "\n" + loan.displayBorrowerDetails(currentDate);
+			loan.appendBorrowerDetails(out.append('\n'), currentDate);
 		}
-		return loanList;
+		return out;
 	}
 
 	// retrieves a loan that the customer has taken out
@@ -230,12 +320,12 @@ public class Customer {
 	public void removeLoan(String loanID) {
 		for (int index = 0; index < currentLoansOffered.size(); index++) {
 			if (currentLoansOffered.get(index).getLoanID().equals(loanID)) {
-				currentLoansOffered.remove(index);
+				totalLoansOffered -= currentLoansOffered.remove(index).getLoanValuePence();
 			}
 		}
 		for (int index = 0; index < currentLoansReceived.size(); index++) {
 			if (currentLoansReceived.get(index).getLoanID().equals(loanID)) {
-				currentLoansReceived.remove(index);
+				totalLoansReceived -= currentLoansReceived.remove(index).getLoanValuePence();
 			}
 		}
 	}
@@ -0,0 +1,113 @@
+package newbank.server;
+
+import java.util.function.Consumer;
+import java.util.concurrent.RecursiveTask;
+
+// brings interest on every loan and savings account up to the end of a day, spread across cores with fork/join
+// the customers are split into ranges until each range is small enough to run on its own; each customer is
+// locked while its accounts and loans are changed, and the figures from every range are added up on the way back
+class EndOfDayBatch extends RecursiveTask<EndOfDayBatch.Position> {
+
+	private static final long serialVersionUID = 1L;
+	private static final int CUSTOMERS_PER_TASK = 64;
+	private static final double DAYS_PER_YEAR = 365.24;
+
+	// the bank's position at the end of the day (amounts in pence)
+	static final class Position {
+		long customers;
+		long accounts;
+		long loans;
+		long savingsInterest; // paid into savings accounts by this batch
+		long loanInterest; // interest and late penalties added to loans by this batch
+		long deposits; // held in customer accounts, after interest (the bank vault is not included)
+		long loansOutstanding; // owed on started loans, after interest
+		BankVault vault; // the account savings interest is paid from (null if there is none)
+
+		private Position add(Position other) {
+			customers += other.customers;
+			accounts += other.accounts;
+			loans += other.loans;
+			savingsInterest += other.savingsInterest;
+			loanInterest += other.loanInterest;
+			deposits += other.deposits;
+			loansOutstanding += other.loansOutstanding;
+			vault = vault != null ? vault : other.vault;
+			return this;
+		}
+	}
+
+	private final Customer[] customers;
+	private final int from;
+	private final int to;
+	private final long fromDay; // interest is added for the days after this one...
+	private final long toDay; // ...up to and including this one
+	private final double savingsInterestRate;
+	private final Consumer<Customer> beforeChange; // called with the customer locked, before anything is changed
+
+	EndOfDayBatch(Customer[] customers, long fromDay, long toDay, double savingsInterestRate,
+				  Consumer<Customer> beforeChange) {
+		this(customers, 0, customers.length, fromDay, toDay, savingsInterestRate, beforeChange);
+	}
+
+	private EndOfDayBatch(Customer[] customers, int from, int to, long fromDay, long toDay, double savingsInterestRate,
+						  Consumer<Customer> beforeChange) {
+		this.customers = customers;
+		this.from = from;
+		this.to = to;
+		this.fromDay = fromDay;
+		this.toDay = toDay;
+		this.savingsInterestRate = savingsInterestRate;
+		this.beforeChange = beforeChange;
+	}
+
+	protected Position compute() {
+		if (to - from <= CUSTOMERS_PER_TASK) {
+			Position position = new Position();
+			for (int i = from; i < to; i++) {
+				accrue(customers[i], position);
+			}
+			return position;
+		}
+		int middle = (from + to) >>> 1;
+		EndOfDayBatch left = new EndOfDayBatch(customers, from, middle, fromDay, toDay, savingsInterestRate, beforeChange);
+		EndOfDayBatch right = new EndOfDayBatch(customers, middle, to, fromDay, toDay, savingsInterestRate, beforeChange);
+		left.fork();
+		Position position = right.compute();
+		return position.add(left.join());
+	}
+
+	private void accrue(Customer customer, Position position) {
+		customer.lock();
+		try {
+			beforeChange.accept(customer);
+			position.customers++;
+			double savingsGrowth = Math.pow(1 + savingsInterestRate / DAYS_PER_YEAR, toDay - fromDay) - 1;
+			for (Account account : customer.getAccounts()) {
+				position.accounts++;
+				if (account instanceof BankVault) {
+					position.vault = (BankVault) account;
+					continue;
+				}
+				long balance = account.getBalancePence();
+				if (account instanceof SavingsAccount && balance > 0) {
+					long interest = Math.round(balance * savingsGrowth);
+					account.depositFunds(Money.toPounds(interest));
+					position.savingsInterest += interest;
+					balance += interest;
+				}
+				position.deposits += balance;
+			}
+			// each loan is brought up to date once, through its borrower
+			for (Loan loan : customer.getLoansReceived()) {
+				if (loan.loanStarted && !loan.loanFinished) {
+					position.loans++;
+					position.loanInterest += loan.accrueTo(toDay);
+					position.loansOutstanding += loan.getBalancePence();
+				}
+			}
+		} finally {
+			customer.unlock();
+		}
+	}
+
+}
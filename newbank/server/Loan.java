@@ -1,46 +1,99 @@
 package newbank.server;
 
-import java.util.Calendar;
 import java.util.Date;
 import java.lang.Math;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// a loan is shared between its lender and borrower, so its state is guarded by the loan itself
+// amounts are held in pence and dates as days since 1970-01-01 (in the bank's time zone); only the balance at
+// the loan start or the last repayment is stored, and the amount owed on any later day is worked out from it
 public class Loan {
 
-    private static int ID = 1;
+    private static final AtomicInteger ID = new AtomicInteger(1);
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+    private static final double DAYS_PER_YEAR = 365.24;
     private final String loanID;
     private Account lendingAccount = null; // account to send loan repayments to
     private Account borrowingAccount = null; // account to deposit loan into
-    private final double principalAmount;
+    private final long principal; // pence
     private final int loanDuration; // weeks
-    private int remainingDuration; // weeks
     private final double interestRate; // decimal
-    private double repaymentAmount;
-    private double totalInterestAccrued;
+    private long startDay = -1; // the day the loan started (-1 until it has)
+    private long balanceDay; // the day of the loan start or the last repayment
+    private long balance; // pence owed on balanceDay
+    private long interestAccrued; // pence of interest and penalties added before balanceDay
     private boolean fundsCommitted = false;
-    private Date repaymentDeadline;
-    private Date lastUpdated;
-    public boolean loanStarted;
-    public boolean loanFinished;
+    public volatile boolean loanStarted;
+    public volatile boolean loanFinished;
 
     // a loan can be set up by a customer who wants to lend money, or a customer who wants to borrow money
-    public Loan(double principalAmount, double interestRate, int duration, Date setupDate) {
-        this.principalAmount = principalAmount;
-        this.repaymentAmount = principalAmount;
+    public Loan(double principalAmount, double interestRate, int duration) {
+        this.principal = Money.toPence(principalAmount);
+        this.balance = principal;
         this.interestRate = interestRate;
         this.loanDuration = duration;
-        this.remainingDuration = duration;
-        this.lastUpdated = setupDate;
         this.loanStarted = false;
         this.loanFinished = false;
-        loanID = "Loan" + ID;
-        ID++;
+        loanID = "Loan" + ID.getAndIncrement();
+    }
+
+    // rebuilds a loan from a snapshot copy
+    public Loan(BankSnapshot.LoanImage image, Account lendingAccount, Account borrowingAccount) {
+        this.loanID = image.loanID;
+        this.lendingAccount = lendingAccount;
+        this.borrowingAccount = borrowingAccount;
+        this.principal = image.principal;
+        this.loanDuration = image.loanDuration;
+        this.interestRate = image.interestRate;
+        this.startDay = image.startDay;
+        this.balanceDay = image.balanceDay;
+        this.balance = image.balance;
+        this.interestAccrued = image.interestAccrued;
+        this.fundsCommitted = image.fundsCommitted;
+        this.loanStarted = image.loanStarted;
+        this.loanFinished = image.loanFinished;
+    }
+
+    // copies the loan's current state for a snapshot
+    public synchronized BankSnapshot.LoanImage capture() {
+        BankSnapshot.LoanImage image = new BankSnapshot.LoanImage();
+        image.loanID = loanID;
+        image.principal = principal;
+        image.interestRate = interestRate;
+        image.loanDuration = loanDuration;
+        image.startDay = startDay;
+        image.balanceDay = balanceDay;
+        image.balance = balance;
+        image.interestAccrued = interestAccrued;
+        image.fundsCommitted = fundsCommitted;
+        image.loanStarted = loanStarted;
+        image.loanFinished = loanFinished;
+        if (lendingAccount != null) {
+            image.lendingSortCode = lendingAccount.getAccountSortCode();
+            image.lendingNumber = lendingAccount.getAccountNumber();
+        }
+        if (borrowingAccount != null) {
+            image.borrowingSortCode = borrowingAccount.getAccountSortCode();
+            image.borrowingNumber = borrowingAccount.getAccountNumber();
+        }
+        return image;
+    }
+
+    // the number that will be used for the next loan ID
+    public static int getNextID() {
+        return ID.get();
+    }
+
+    public static void setNextID(int nextID) {
+        ID.set(nextID);
     }
 
     // assigns a lending account to commit funds to the loan and/or receive loan repayments
-    public void setLendingAccount(Account lendingAccount, Date startDate) {
+    public synchronized void setLendingAccount(Account lendingAccount, Date startDate) {
         this.lendingAccount = lendingAccount;
         if (!fundsCommitted) {
-            this.lendingAccount.withdrawFunds(principalAmount);
+            this.lendingAccount.withdrawFunds(Money.toPounds(principal));
             fundsCommitted = true;
         }
         // if there is already a borrowing account assigned, the funds are deposited and the loan starts
@@ -50,7 +103,7 @@ public class Loan {
     }
 
     // assigns a borrowing account to receive the loan payment
-    public void setBorrowingAccount(Account borrowingAccount, Date startDate) {
+    public synchronized void setBorrowingAccount(Account borrowingAccount, Date startDate) {
         this.borrowingAccount = borrowingAccount;
         // if there is already a lending account assigned, the funds are deposited and the loan starts
         if (lendingAccount != null) {
@@ -58,27 +111,46 @@ public class Loan {
         }
     }
 
-    // rounds a number to two decimal places
-    private double currencyNum(double number) {
-        return Math.round(number * 100) / 100.0;
-    }
-
     // display details about the loan
     public String displayDetails() {
-        return loanID + ": " + principalAmount + " at " + (interestRate * 100) + "% for " + remainingDuration +
-                " weeks.";
+        return appendDetails(new StringBuilder()).toString();
+    }
+
+    // writes the details about the loan into a response
+    public synchronized StringBuilder appendDetails(StringBuilder out) {
+        return out.append(loanID).append(": ").append(Money.toPounds(principal)).append(" at ").append(interestRate * 100)
+                .append("% for ").append(loanDuration).append(" weeks.");
+    }
+
+    // writes the status of the loan for the lender into a response
+    public synchronized StringBuilder appendLenderDetails(StringBuilder out, Date currentDate) {
+        long interest = interestAccrued;
+        if (loanStarted) {
+            interest += Math.round(owedOn(epochDay(currentDate))) - balance;
+        }
+        return out.append(loanID).append(": ").append(Money.toPounds(principal)).append(" lent, ")
+                .append(Money.toPounds(interest)).append(" interest earned.");
     }
 
-    // display status of the loan for the lender
-    public String displayLenderDetails(Date currentDate) {
-        refreshLoanData(currentDate); // required to refresh interest accrued value
-        return loanID + ": " + principalAmount + " lent, " + currencyNum(totalInterestAccrued) + " interest earned.";
+    // writes the status of the loan for the borrower into a response
+    public synchronized StringBuilder appendBorrowerDetails(StringBuilder out, Date currentDate) {
+        return out.append(loanID).append(": ").append(Money.toPounds(principal)).append(" borrowed, ")
+                .append(getRepaymentAmount(currentDate)).append(" left to pay.");
     }
 
-    // display status of the loan for the borrower
-    public String displayBorrowerDetails(Date currentDate) {
-        refreshLoanData(currentDate);
-        return loanID + ": " + principalAmount + " borrowed, " + currencyNum(repaymentAmount) + " left to pay.";
+    // return the customer who lends the money (null until a lending account has been assigned)
+    public synchronized Customer getLender() {
+        return lendingAccount != null ? lendingAccount.getOwner() : null;
+    }
+
+    // return the account the loan is lent from (null until a lending account has been assigned)
+    public synchronized Account getLendingAccount() {
+        return lendingAccount;
+    }
+
+    // return the customer who borrows the money (null until a borrowing account has been assigned)
+    public synchronized Customer getBorrower() {
+        return borrowingAccount != null ? borrowingAccount.getOwner() : null;
     }
 
     // return the loanID
@@ -88,76 +160,115 @@ public class Loan {
 
     // return the loan value
     public double getLoanValue() {
-        return principalAmount;
+        return Money.toPounds(principal);
+    }
+
+    // return the loan value in pence
+    public long getLoanValuePence() {
+        return principal;
+    }
+
+    public double getInterestRate() {
+        return interestRate;
+    }
+
+    // return the agreed length of the loan in weeks
+    public int getLoanDuration() {
+        return loanDuration;
     }
 
     // a customer who wishes to borrow money can accept a loan
     private void startLoan(Account borrowingAccount, Date startDate) {
-        borrowingAccount.depositFunds(principalAmount);
-        setRepaymentDeadline(startDate);
-        lastUpdated = startDate;
+        borrowingAccount.depositFunds(Money.toPounds(principal));
+        startDay = epochDay(startDate);
+        balanceDay = startDay;
         loanStarted = true;
     }
 
-    // set or update the repayment deadline for the loan
-    private void setRepaymentDeadline(Date startDate) {
-        Calendar repaymentCalendar = Calendar.getInstance();
-        repaymentCalendar.setTime(startDate);
-        repaymentCalendar.add(Calendar.DATE, (loanDuration * 7));
-        repaymentDeadline = repaymentCalendar.getTime();
+    // the day a date falls on in the bank's time zone, counted from 1970-01-01
+    static long epochDay(Date date) {
+        long millis = date.getTime();
+        return Math.floorDiv(millis + TimeZone.getDefault().getOffset(millis), MILLIS_PER_DAY);
     }
 
-    // add interest accrued over a specified period to the repayment amount
-    private void calculateInterest(Date startDate, Date endDate) {
-        long timeElapsed = endDate.getTime() - startDate.getTime(); // milliseconds
-        int interestPeriod = (int) timeElapsed / (1000 * 60 * 60 * 24); // days
-        repaymentAmount *= Math.pow((1 + (interestRate/365.24)), interestPeriod);
+    // the number of repayment deadlines before the given day; the first deadline is one loan term after the
+    // loan starts, and each time a deadline is missed the loan is extended by another term
+    private long deadlinesBefore(long day) {
+        long term = 7L * loanDuration;
+        long firstDeadline = startDay + term;
+        return day > firstDeadline ? (day - firstDeadline - 1) / term + 1 : 0;
     }
 
-    // update the outstanding balance on the loan, the time remaining, and the total interest accrued
-    private void refreshLoanData(Date currentDate) {
-        if (loanStarted) {
-            double previousRepaymentAmount = repaymentAmount;
-            // apply a late repayment penalty if required
-            while (currentDate.after(repaymentDeadline)) {
-                // add interest accrued up to the repayment deadline
-                calculateInterest(lastUpdated, repaymentDeadline);
-                // apply late repayment penalty
-                repaymentAmount += principalAmount * interestRate;
-                // update repayment deadline (the extension provided is equal to the original loan duration)
-                lastUpdated = repaymentDeadline;
-                setRepaymentDeadline(repaymentDeadline);
-            }
-            // add interest accrued up to the current date
-            calculateInterest(lastUpdated, currentDate);
-            // update loan information
-            lastUpdated = currentDate;
-            remainingDuration = (int) (repaymentDeadline.getTime() - currentDate.getTime()) / (1000 * 60 * 60 * 24 * 7);
-            totalInterestAccrued += repaymentAmount - previousRepaymentAmount;
+    // the first day after the given one on which the loan has passed another repayment deadline
+    // (the day after the deadline, when its late repayment penalty is due)
+    public synchronized long nextOverdueDay(long day) {
+        return startDay + (deadlinesBefore(day) + 1) * 7L * loanDuration + 1;
+    }
+
+    // the pence owed on a day of a started loan: interest compounds daily on the balance, and a late repayment
+    // penalty of principal x rate is added at each missed deadline and then earns interest itself
+    // the missed deadlines form a geometric series, so this costs the same however long the loan has run
+    private double owedOn(long day) {
+        if (loanFinished) {
+            return balance;
+        }
+        day = Math.max(day, balanceDay);
+        double dailyGrowth = 1 + interestRate / DAYS_PER_YEAR;
+        double owed = balance * Math.pow(dailyGrowth, day - balanceDay);
+        long missedSinceBalance = deadlinesBefore(day) - deadlinesBefore(balanceDay);
+        if (missedSinceBalance > 0) {
+            long term = 7L * loanDuration;
+            long lastMissed = startDay + deadlinesBefore(day) * term; // deadlines are startDay + n * term, n >= 1
+            double termGrowth = Math.pow(dailyGrowth, term);
+            double penalties = termGrowth == 1 ? missedSinceBalance :
+                    (Math.pow(termGrowth, missedSinceBalance) - 1) / (termGrowth - 1);
+            owed += principal * interestRate * Math.pow(dailyGrowth, day - lastMissed) * penalties;
         }
+        return owed;
     }
 
     // return the outstanding balance on the loan
-    public double getRepaymentAmount(Date currentDate) {
-        refreshLoanData(currentDate);
-        return currencyNum(repaymentAmount);
+    public synchronized double getRepaymentAmount(Date currentDate) {
+        if (!loanStarted) {
+            return Money.toPounds(balance);
+        }
+        return Money.toPounds(Math.round(owedOn(epochDay(currentDate))));
+    }
+
+    // fixes the interest and penalties up to the given day in whole pence, so later interest is worked out
+    // from the new balance; returns the pence added
+    public synchronized long accrueTo(long day) {
+        if (!loanStarted || loanFinished || day <= balanceDay) {
+            return 0;
+        }
+        long owed = Math.round(owedOn(day));
+        long added = owed - balance;
+        interestAccrued += added;
+        balance = owed;
+        balanceDay = day;
+        return added;
+    }
+
+    // return the balance fixed by the last repayment or end of day, in pence
+    public synchronized long getBalancePence() {
+        return balance;
     }
 
     // make a repayment on the loan
-    public void makeRepayment(Date currentDate, double repayment, Account repaymentAccount) {
+    public synchronized void makeRepayment(Date currentDate, double repayment, Account repaymentAccount) {
         repaymentAccount.withdrawFunds(repayment);
         lendingAccount.depositFunds(repayment);
-        repaymentAmount -= repayment;
-        if (currencyNum(repaymentAmount) == 0) {
+        accrueTo(epochDay(currentDate));
+        balance -= Money.toPence(repayment);
+        if (balance <= 0) {
             loanFinished = true;
         }
-        lastUpdated = currentDate;
     }
 
     // return the loan funds to the lender
-    public void cancelLoan() {
+    public synchronized void cancelLoan() {
         if (!loanStarted) {
-            lendingAccount.depositFunds(principalAmount);
+            lendingAccount.depositFunds(Money.toPounds(principal));
         }
     }
 
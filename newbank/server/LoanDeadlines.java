@@ -0,0 +1,126 @@
+package newbank.server;
+
+import java.util.ArrayList;
+
+// the days on which started loans next pass a repayment deadline, held in a hierarchical timer wheel
+// level n has 64 slots of 64^n days; a deadline sits at the level of the highest 6-bit group of its day that differs
+// from the wheel's current day, so moving the wheel on jumps from one occupied slot to the next however many days
+// are skipped, and each deadline is moved down at most once per level before it fires
+// loans are added by commands holding the bank's sequence lock, and the wheel is only moved on by the end-of-day
+// batch (which no command runs alongside), so it needs no locking of its own
+class LoanDeadlines {
+
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int LEVELS = (Long.SIZE + BITS - 1) / BITS; // enough levels for any day
+
+	// called for each deadline as the wheel reaches it; returns the next day to call it for the loan, or -1 for none
+	interface DueHandler {
+		long due(Loan loan, long day);
+	}
+
+	private static final class Deadline {
+		final Loan loan;
+		final long day;
+
+		Deadline(Loan loan, long day) {
+			this.loan = loan;
+			this.day = day;
+		}
+	}
+
+	private final long[] occupied = new long[LEVELS]; // one bit for each slot that holds deadlines
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final ArrayList<Deadline>[] slots = new ArrayList[LEVELS * SLOTS];
+	private ArrayList<Deadline> late = new ArrayList<>(); // deadlines on or before the current day, not yet fired
+	private long current; // the day the wheel has reached
+
+	LoanDeadlines(long day) {
+		current = day;
+	}
+
+	// empties the wheel and sets the day it has reached
+	void reset(long day) {
+		for (int level = 0; level < LEVELS; level++) {
+			occupied[level] = 0;
+		}
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = null;
+		}
+		late = new ArrayList<>();
+		current = day;
+	}
+
+	void schedule(Loan loan, long day) {
+		add(new Deadline(loan, day));
+	}
+
+	// moves the wheel on to the given day, calling the handler for every deadline up to and including it, in day order
+	void advanceTo(long day, DueHandler handler) {
+		while (true) {
+			fireLate(handler);
+			int level = 0;
+			while (level < LEVELS && occupied[level] == 0) {
+				level++;
+			}
+			if (level == LEVELS) {
+				break;
+			}
+			int slot = Long.numberOfTrailingZeros(occupied[level]);
+			int shift = level * BITS;
+			// the first day of the slot: the current day's higher groups, then the slot's own group, then zeros
+			long higher = shift + BITS >= Long.SIZE ? 0 : current >>> (shift + BITS) << (shift + BITS);
+			long slotStart = higher | (long) slot << shift;
+			if (slotStart > day) {
+				break;
+			}
+			current = Math.max(current, slotStart);
+			occupied[level] &= ~(1L << slot);
+			ArrayList<Deadline> deadlines = slots[level * SLOTS + slot];
+			slots[level * SLOTS + slot] = null;
+			// deadlines on the slot's first day fire now; the rest move down to a lower level
+			for (Deadline deadline : deadlines) {
+				if (deadline.day <= current) {
+					fire(deadline, handler);
+				} else {
+					add(deadline);
+				}
+			}
+		}
+		current = Math.max(current, day);
+	}
+
+	private void add(Deadline deadline) {
+		if (deadline.day <= current) {
+			late.add(deadline);
+			return;
+		}
+		int level = (Long.SIZE - 1 - Long.numberOfLeadingZeros(deadline.day ^ current)) / BITS;
+		int slot = (int) (deadline.day >>> (level * BITS)) & (SLOTS - 1);
+		ArrayList<Deadline> deadlines = slots[level * SLOTS + slot];
+		if (deadlines == null) {
+			deadlines = new ArrayList<>();
+			slots[level * SLOTS + slot] = deadlines;
+		}
+		deadlines.add(deadline);
+		occupied[level] |= 1L << slot;
+	}
+
+	private void fireLate(DueHandler handler) {
+		while (!late.isEmpty()) {
+			ArrayList<Deadline> due = late;
+			late = new ArrayList<>();
+			for (Deadline deadline : due) {
+				fire(deadline, handler);
+			}
+		}
+	}
+
+	private void fire(Deadline deadline, DueHandler handler) {
+		long next = handler.due(deadline.loan, deadline.day);
+		if (next >= 0) {
+			add(new Deadline(deadline.loan, next));
+		}
+	}
+
+}
@@ -0,0 +1,225 @@
+package newbank.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// the loans waiting on the marketplace (either offers or requests), found by ID and kept sorted by amount,
+// interest rate and duration so that a page of a listing costs the same however many loans are waiting
+// loans are added and removed under the bank's sequence lock; listings read the indexes without any lock
+public class LoanMarketPlace {
+
+	// the orders a listing can be sorted in
+	public enum SortKey {
+		AMOUNT, RATE, DURATION
+	}
+
+	// which loans a listing includes; rates are decimals (0.05 is 5%)
+	public static class Filter {
+		double minAmount = Double.NEGATIVE_INFINITY;
+		double maxAmount = Double.POSITIVE_INFINITY;
+		double minRate = Double.NEGATIVE_INFINITY;
+		double maxRate = Double.POSITIVE_INFINITY;
+		double minDuration = Double.NEGATIVE_INFINITY;
+		double maxDuration = Double.POSITIVE_INFINITY;
+
+		boolean matches(Loan loan) {
+			return loan.getLoanValue() >= minAmount && loan.getLoanValue() <= maxAmount &&
+					loan.getInterestRate() >= minRate && loan.getInterestRate() <= maxRate &&
+					loan.getLoanDuration() >= minDuration && loan.getLoanDuration() <= maxDuration;
+		}
+
+		private double lower(SortKey key) {
+			return key == SortKey.AMOUNT ? minAmount : key == SortKey.RATE ? minRate : minDuration;
+		}
+
+		private double upper(SortKey key) {
+			return key == SortKey.AMOUNT ? maxAmount : key == SortKey.RATE ? maxRate : maxDuration;
+		}
+	}
+
+	// where a loan sits in one of the sorted indexes: its value for that index, then its loan number,
+	// so that loans with the same value keep the order they were added in
+	// written as "value:number", this is also the cursor a customer uses to ask for the next page
+	private static final class Position implements Comparable<Position> {
+		final double value;
+		final long number;
+
+		Position(double value, long number) {
+			this.value = value;
+			this.number = number;
+		}
+
+		public int compareTo(Position other) {
+			int byValue = Double.compare(value, other.value);
+			return byValue != 0 ? byValue : Long.compare(number, other.number);
+		}
+
+		public String toString() {
+			return value + ":" + number;
+		}
+
+		// throws NumberFormatException if the text is not a cursor
+		static Position parse(String cursor) {
+			int colon = cursor.lastIndexOf(':');
+			if (colon < 0) {
+				throw new NumberFormatException("Not a cursor: " + cursor);
+			}
+			return new Position(Double.parseDouble(cursor.substring(0, colon)), Long.parseLong(cursor.substring(colon + 1)));
+		}
+	}
+
+	// the terms two loans must share to be matched with each other (the interest rate follows from the duration)
+	private static final class Terms {
+		final double amount;
+		final int duration;
+
+		Terms(double amount, int duration) {
+			this.amount = amount;
+			this.duration = duration;
+		}
+
+		public boolean equals(Object other) {
+			return other instanceof Terms && ((Terms) other).amount == amount && ((Terms) other).duration == duration;
+		}
+
+		public int hashCode() {
+			return 31 * Double.hashCode(amount) + duration;
+		}
+	}
+
+	private final Map<String, Loan> loans = new ConcurrentHashMap<>();
+	// loans with the same terms, oldest first, for matching offers with requests
+	private final Map<Terms, ConcurrentSkipListMap<Long, Loan>> byTerms = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<Position, Loan> byAmount = new ConcurrentSkipListMap<>();
+	private final ConcurrentSkipListMap<Position, Loan> byRate = new ConcurrentSkipListMap<>();
+	private final ConcurrentSkipListMap<Position, Loan> byDuration = new ConcurrentSkipListMap<>();
+
+	public void put(Loan loan) {
+		Loan previous = loans.put(loan.getLoanID(), loan);
+		if (previous != null) {
+			removeFromIndexes(previous);
+		}
+		long number = loanNumber(loan);
+		byAmount.put(new Position(loan.getLoanValue(), number), loan);
+		byRate.put(new Position(loan.getInterestRate(), number), loan);
+		byDuration.put(new Position(loan.getLoanDuration(), number), loan);
+		byTerms.computeIfAbsent(new Terms(loan.getLoanValue(), loan.getLoanDuration()), terms -> new ConcurrentSkipListMap<>())
+				.put(number, loan);
+	}
+
+	public Loan get(String loanID) {
+		return loans.get(loanID);
+	}
+
+	public boolean containsKey(String loanID) {
+		return loans.containsKey(loanID);
+	}
+
+	public Loan remove(String loanID) {
+		Loan loan = loans.remove(loanID);
+		if (loan != null) {
+			removeFromIndexes(loan);
+		}
+		return loan;
+	}
+
+	public void clear() {
+		loans.clear();
+		byAmount.clear();
+		byRate.clear();
+		byDuration.clear();
+		byTerms.clear();
+	}
+
+	public int size() {
+		return loans.size();
+	}
+
+	// the loan that has been waiting longest for the given amount and duration (null if there is none)
+	public Loan oldestWithTerms(double amount, int duration) {
+		ConcurrentSkipListMap<Long, Loan> sameTerms = byTerms.get(new Terms(amount, duration));
+		if (sameTerms == null) {
+			return null;
+		}
+		Map.Entry<Long, Loan> oldest = sameTerms.firstEntry();
+		return oldest != null ? oldest.getValue() : null;
+	}
+
+	// writes up to limit matching loans into a response, one per line, in the order of the sort key
+	// starting after the cursor (null for the first page); returns the cursor for the next page, or null if there is none
+	// throws NumberFormatException if the cursor is not one this method returned
+	public String appendPage(StringBuilder out, Filter filter, SortKey sortKey, String cursor, int limit) {
+		Position from = new Position(filter.lower(sortKey), Long.MIN_VALUE);
+		boolean fromInclusive = true;
+		if (cursor != null) {
+			Position after = Position.parse(cursor);
+			if (after.compareTo(from) >= 0) {
+				from = after;
+				fromInclusive = false;
+			}
+		}
+		Position to = new Position(filter.upper(sortKey), Long.MAX_VALUE);
+		if (from.compareTo(to) > 0) {
+			return null;
+		}
+		// the sort key's own range is found through the index; the other filters are checked loan by loan
+		ConcurrentNavigableMap<Position, Loan> range = index(sortKey).subMap(from, fromInclusive, to, true);
+		Position last = null;
+		int shown = 0;
+		for (Map.Entry<Position, Loan> entry : range.entrySet()) {
+			Loan loan = entry.getValue();
+			if (!filter.matches(loan)) {
+				continue;
+			}
+			if (shown == limit) {
+				return last.toString(); // there is at least one more loan to show
+			}
+			loan.appendDetails(out.append('\n'));
+			last = entry.getKey();
+			shown++;
+		}
+		return null;
+	}
+
+	private void removeFromIndexes(Loan loan) {
+		long number = loanNumber(loan);
+		byAmount.remove(new Position(loan.getLoanValue(), number));
+		byRate.remove(new Position(loan.getInterestRate(), number));
+		byDuration.remove(new Position(loan.getLoanDuration(), number));
+		Terms terms = new Terms(loan.getLoanValue(), loan.getLoanDuration());
+		ConcurrentSkipListMap<Long, Loan> sameTerms = byTerms.get(terms);
+		if (sameTerms != null) {
+			sameTerms.remove(number);
+			if (sameTerms.isEmpty()) {
+				byTerms.remove(terms);
+			}
+		}
+	}
+
+	private ConcurrentSkipListMap<Position, Loan> index(SortKey key) {
+		switch (key) {
+			case RATE:
+				return byRate;
+			case DURATION:
+				return byDuration;
+			default:
+				return byAmount;
+		}
+	}
+
+	// loan IDs are "Loan" followed by a number that increases as loans are created
+	private static long loanNumber(Loan loan) {
+		String loanID = loan.getLoanID();
+		long number = 0;
+		for (int i = 0; i < loanID.length(); i++) {
+			char c = loanID.charAt(i);
+			if (c >= '0' && c <= '9') {
+				number = number * 10 + (c - '0');
+			}
+		}
+		return number;
+	}
+
+}
@@ -0,0 +1,88 @@
+package newbank.server;
+
+// amounts of money are held as a whole number of pence to avoid rounding drift
+public final class Money {
+
+	public static final long PENCE_PER_POUND = 100;
+
+	private Money() {
+	}
+
+	// converts an amount in pounds to pence, rounding to the nearest penny
+	public static long toPence(double pounds) {
+		return Math.round(pounds * PENCE_PER_POUND);
+	}
+
+	// converts an amount in pence to pounds for display and for the interest calculations
+	public static double toPounds(long pence) {
+		return pence / (double) PENCE_PER_POUND;
+	}
+
+	// writes an amount in pence as pounds in the form parse reads back exactly (e.g. "12.34", "-0.05")
+	public static String format(long pence) {
+		long pounds = Math.abs(pence / PENCE_PER_POUND);
+		long remainder = Math.abs(pence % PENCE_PER_POUND);
+		return (pence < 0 ? "-" : "") + pounds + (remainder < 10 ? ".0" : ".") + remainder;
+	}
+
+	// parses an amount in pounds entered by a customer (e.g. "12.34") into pence
+	// throws NumberFormatException if the text is not a number that fits in a long number of pence
+	public static long parse(String pounds) {
+		return parse(pounds, 0, pounds.length());
+	}
+
+	// parses text[start, end) without creating any objects: an optional sign, digits and up to one decimal point
+	// anything after the pence is rounded half up, as BigDecimal's HALF_UP would (e.g. "1.005" is 101 pence)
+	public static long parse(CharSequence text, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+			negative = text.charAt(i) == '-';
+			i++;
+		}
+		long pence = 0;
+		int digits = 0;
+		int decimals = -1; // digits seen after the decimal point (-1 before it)
+		boolean roundUp = false;
+		for (; i < end; i++) {
+			char c = text.charAt(i);
+			if (c == '.' && decimals < 0) {
+				decimals = 0;
+			} else if (c >= '0' && c <= '9') {
+				digits++;
+				if (decimals < 2) {
+					int digit = c - '0';
+					if (pence > (Long.MAX_VALUE - digit) / 10) {
+						throw new NumberFormatException("Amount out of range: " + text.subSequence(start, end));
+					}
+					pence = pence * 10 + digit;
+				} else if (decimals == 2) {
+					roundUp = c >= '5';
+				}
+				if (decimals >= 0) {
+					decimals++;
+				}
+			} else {
+				throw new NumberFormatException("Not an amount: " + text.subSequence(start, end));
+			}
+		}
+		if (digits == 0) {
+			throw new NumberFormatException("Not an amount: " + text.subSequence(start, end));
+		}
+		// scale up to pence if fewer than two decimal places were given
+		for (int places = Math.max(decimals, 0); places < 2; places++) {
+			if (pence > Long.MAX_VALUE / 10) {
+				throw new NumberFormatException("Amount out of range: " + text.subSequence(start, end));
+			}
+			pence *= 10;
+		}
+		if (roundUp) {
+			if (pence == Long.MAX_VALUE) {
+				throw new NumberFormatException("Amount out of range: " + text.subSequence(start, end));
+			}
+			pence++;
+		}
+		return negative ? -pence : pence;
+	}
+
+}
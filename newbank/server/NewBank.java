@@ -1,13 +1,25 @@
 package newbank.server;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.regex.*;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.lang.Double;
 import java.lang.Integer;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.ArrayList;
-import java.util.Random;
 import java.lang.Math;
 
 public class NewBank {
@@ -25,41 +37,122 @@ public class NewBank {
 	private static final double mediumTermInterestRate = 0.04;
 	private static final int mediumTermInterestDuration = 12; // weeks
 	private static final double longTermInterestRate = 0.03;
+	private static final double savingsInterestRate = 0.01; // a year, added by the end-of-day batch
 	private static final String sortCode = "07-16-18";
-	private static int accountNumberCurrent;
-	private static ArrayList<Integer> accountNumberList;
+	private static final int defaultLoanPageSize = 20; // loans listed by SHOWLOANS unless a LIMIT is given
+	private static final int maxLoanPageSize = 500;
+	static final int maxBatchLength = 1 << 18; // characters in a BATCH, so that it fits in one journal record
+	static final int maxRequestLength = 8192; // characters in any other request (the longest line a client can send)
+	private static final int maxAddressLength = 200;
+	private static final long maxTransferAmount = 1_000_000_000L * Money.PENCE_PER_POUND; // pence in one payment or transfer
 
 	// data structures for bank
-	private HashMap<String,Customer> customers; // place to store all customer data
-	private Calendar calendar = Calendar.getInstance(); // for time-dependent operations (e.g. interest)
-	private HashMap<String, Loan> loanOfferMarketPlace; // place to store loan offers before people take them
-	private HashMap<String, Loan> loanRequestMarketPlace; // place to store loan requests before people grant them
+	// customer data is guarded by each customer's own lock (see processRequest); the maps themselves are concurrent
+	private ConcurrentHashMap<String,Customer> customers; // place to store all customer data
+	private final Calendar calendar = Calendar.getInstance(); // for time-dependent operations (e.g. interest) - guarded by itself
+	private LoanMarketPlace loanOfferMarketPlace; // place to store loan offers before people take them
+	private LoanMarketPlace loanRequestMarketPlace; // place to store loan requests before people grant them
+	private ConcurrentHashMap<Long, Account> accountsByNumber; // every account, keyed by sort code and account number
+	private AccountNumberAllocator accountNumbers; // source of new, unique account numbers
+	private volatile CommandJournal journal; // write-ahead log of state changes (null if the bank is not journaled)
+	// held while running commands that use bank-wide state (account numbers, loan IDs, marketplaces, calendar) so that
+	// they reach the journal in the order they ran; always taken after any customer locks
+	private final ReentrantLock sequenceLock = new ReentrantLock();
+	// every command holds the read lock; a snapshot holds the write lock just long enough to fix its starting point
+	private final ReentrantReadWriteLock snapshotCut = new ReentrantReadWriteLock();
+	private volatile long snapshotEpoch = 0; // the most recent snapshot started
+	private volatile BankSnapshot runningSnapshot; // the snapshot being taken (null if none)
+	private long endOfDay; // the last day interest was brought up to - guarded by snapshotCut's write lock
+	private final LoanDeadlines deadlines; // when each started loan next passes a deadline - guarded by sequenceLock
+	private volatile String endOfDayReport; // the figures from the last end-of-day batch (null before the first)
+	private volatile ScheduledExecutorService endOfDayScheduler; // null until scheduleEndOfDay is called
+	// logged-in sessions that a reconnecting client can resume with its token, instead of logging in again
+	// a session nobody is connected to ends after -Dnewbank.session.idle seconds, and any session after
+	// -Dnewbank.session.lifetime seconds
+	private final SessionTable sessions = new SessionTable(
+			Long.parseLong(System.getProperty("newbank.session.idle", "1800")),
+			Long.parseLong(System.getProperty("newbank.session.lifetime", "86400")));
+
+	// latency of every command, reported to admins by STATS
+	private final CommandStats commandStats = new CommandStats();
+	// the handler for each command, indexed by the command's ordinal
+	private final Handler[] handlers = new Handler[Command.values().length];
+
+	// runs one command for a customer, writing its response into the given builder
+	private interface Handler {
+		void handle(CustomerID customer, CommandLine requestParams, StringBuilder response);
+	}
+
+	// most commands reply with a short message, which is simply added to the response
+	private interface MessageHandler {
+		String handle(CustomerID customer, CommandLine requestParams);
+	}
+
+	private static Handler message(MessageHandler handler) {
+		return (customer, requestParams, response) -> response.append(handler.handle(customer, requestParams));
+	}
 
 	private NewBank() {
-		customers = new HashMap<>();
-		loanOfferMarketPlace = new HashMap<>();
-		loanRequestMarketPlace = new HashMap<>();
-		accountNumberList = new ArrayList<>();
+		customers = new ConcurrentHashMap<>();
+		loanOfferMarketPlace = new LoanMarketPlace();
+		loanRequestMarketPlace = new LoanMarketPlace();
+		accountsByNumber = new ConcurrentHashMap<>();
+		accountNumbers = new AccountNumberAllocator();
+		endOfDay = Loan.epochDay(currentDate());
+		deadlines = new LoanDeadlines(endOfDay);
+		registerHandlers();
 		addTestData();
 	}
+
+	private void registerHandlers() {
+		handlers[Command.HELP.ordinal()] = message((customer, requestParams) -> showHelp());
+		handlers[Command.SHOWMYACCOUNTS.ordinal()] = (customer, requestParams, response) -> showMyAccounts(customer, requestParams.getResult(), response); // this should also show money lent and borrowed
+		handlers[Command.NEWSAVINGSACCOUNT.ordinal()] = message(this::newSavingsAccount);
+		handlers[Command.NEWCHECKINGACCOUNT.ordinal()] = message(this::newCheckingAccount);
+		handlers[Command.RENAMEACCOUNT.ordinal()] = message(this::renameAccounts);
+		handlers[Command.DEPOSIT.ordinal()] = message(this::depositFunds);
+		handlers[Command.SETOVERDRAFT.ordinal()] = message(this::overdraft);
+		handlers[Command.CHECKOVERDRAFT.ordinal()] = message((customer, requestParams) -> checkoverdraft(customer));
+		handlers[Command.MOVE.ordinal()] = message(this::transferFunds);
+		handlers[Command.PAY.ordinal()] = message(this::makePayment);
+		handlers[Command.PAYACCOUNT.ordinal()] = message(this::payAccountNumber);
+		handlers[Command.OFFERLOAN.ordinal()] = message(this::offerLoan);
+		handlers[Command.REQUESTLOAN.ordinal()] = message(this::requestLoan);
+		handlers[Command.SHOWLOANS.ordinal()] = (customer, requestParams, response) -> showLoans(requestParams, response);
+		handlers[Command.LENDTO.ordinal()] = message(this::lendTo);
+		handlers[Command.BORROWFROM.ordinal()] = message(this::borrowFrom);
+		handlers[Command.REPAY.ordinal()] = message(this::loanRepayment);
+		handlers[Command.REMOVELOAN.ordinal()] = message(this::removeLoan);
+		handlers[Command.TIMETRAVEL.ordinal()] = message((customer, requestParams) -> timeTravel(requestParams)); // for testing purposes
+		handlers[Command.LOGOUT.ordinal()] = message((customer, requestParams) -> "LOGOUT");
+		handlers[Command.SHOWCONTACTDETAILS.ordinal()] = this::showContactDetails;
+		handlers[Command.CHANGEPOSTCODE.ordinal()] = message(this::changePostcode);
+		handlers[Command.CHANGEMYADDRESS.ordinal()] = message(this::changeAddress);
+		handlers[Command.CHANGEMYEMAIL.ordinal()] = message(this::changeEmail);
+		handlers[Command.CHANGEMYMOBILE.ordinal()] = message(this::changeMobilePhone);
+		handlers[Command.CHANGEMYLANDLINE.ordinal()] = message(this::changeLandlinePhone);
+		handlers[Command.PROMOTE.ordinal()] = message(this::promote);
+		handlers[Command.DEMOTE.ordinal()] = message(this::demote);
+		handlers[Command.CHECKPERMISSIONS.ordinal()] = message(this::checkPermissions);
+		handlers[Command.STATS.ordinal()] = message(this::showStats);
+		handlers[Command.BATCH.ordinal()] = message((customer, requestParams) ->
+				"Send BATCH on a line of its own, then one payment or transfer on each line, then END.");
+	}
 	
 	private void addTestData() {
-		//initial starting account number
-		accountNumberCurrent = 77771234;
-
 		Customer bhagy = new Customer("bhagy1234");
-		bhagy.addAccount(new BankVault(sortCode, assignAccountNumber(), "BankVault", 1000000.0));
+		openAccount(bhagy, new BankVault(sortCode, assignAccountNumber(), "BankVault", 1000000.0));
 		bhagy.setPassword("test1234");
 		customers.put("Bhagy", bhagy);
 		bhagy.setIsAdmin(true);
 
 		Customer christina = new Customer("christina5678");
-		christina.addAccount(new SavingsAccount(sortCode, assignAccountNumber(), "Savings", 1500.0));
+		openAccount(christina, new SavingsAccount(sortCode, assignAccountNumber(), "Savings", 1500.0));
 		christina.setPassword("test5678");
 		customers.put("Christina", christina);
 		
 		Customer john = new Customer("john9999");
-		john.addAccount(new CheckingAccount(sortCode, assignAccountNumber(), "Checking", 250.0));
+		openAccount(john, new CheckingAccount(sortCode, assignAccountNumber(), "Checking", 250.0));
 		john.setPassword("test9999");
 		customers.put("John", john);
 	}
@@ -72,336 +165,998 @@ public class NewBank {
 		c.setPassword(password);
 	}
 
-	public synchronized CustomerID checkLogInDetails(String userName, String password) {
-		if(customers.containsKey(userName) && (customers.get(userName).getPassword().equals(password))) {
+	public CustomerID checkLogInDetails(String userName, String password) {
+		Customer customer = customers.get(userName);
+		if(customer != null && customer.getPassword().equals(password)) {
 			return new CustomerID(userName);
 		}
 		return null;
 	}
 
+	public SessionTable getSessions() {
+		return sessions;
+	}
+
 	public boolean usernameIsAvailable(String userName) {
 		return !customers.containsKey(userName);
 	}
 
 	public CustomerID createNewCustomer(String userName, String password) {
 		Customer c = new Customer(password);
-		customers.put(userName, c);
 		CustomerID id = new CustomerID(userName);
-		// Create Main account upon new customer creation
-		String[] defaultAccountRequest = {"NEWSAVINGSACCOUNT","Main"};
-		bank.newSavingsAccount(id, defaultAccountRequest);
+		long journalSequence;
+		// the new customer is locked before anyone else can see it, then the bank-wide ordering lock is taken
+		snapshotCut.readLock().lock();
+		c.lock();
+		try {
+			c.setSnapshotEpoch(snapshotEpoch); // a snapshot that is already running does not include this customer
+			sequenceLock.lock();
+			try {
+				// the name may have been taken by another session since it was checked
+				if(customers.putIfAbsent(userName, c) != null) {
+					return null;
+				}
+				// Create Main account upon new customer creation
+				bank.newSavingsAccount(id, new CommandLine("NEWSAVINGSACCOUNT","Main"));
+				journalSequence = journal(CommandJournal.NEW_CUSTOMER, userName, password);
+			} finally {
+				sequenceLock.unlock();
+			}
+		} finally {
+			c.unlock();
+			snapshotCut.readLock().unlock();
+		}
+		if(!awaitJournal(journalSequence)) {
+			return null;
+		}
 		return id;
 	}
 
+	// restores the latest snapshot (if any) and replays the journal entries written after it,
+	// then records every further change in the journal
+	public void recover(Path snapshotFile, Path journalFile, CommandJournal.SyncPolicy policy, long maxBatchDelayMicros)
+			throws IOException {
+		long started = System.nanoTime();
+		BankSnapshot snapshot = BankSnapshot.read(snapshotFile);
+		long skip = 0;
+		if(snapshot != null) {
+			restoreSnapshot(snapshot);
+			skip = snapshot.journalPosition;
+			System.out.println("Loaded snapshot of " + customers.size() + " customers from " + snapshotFile);
+		}
+		long entries = CommandJournal.replay(journalFile, skip, this::replayJournalEntry);
+		System.out.println("Replayed " + Math.max(0, entries - skip) + " journal entries from " + journalFile + " in " +
+				(System.nanoTime() - started) / 1000000 + " ms");
+		journal = new CommandJournal(journalFile, entries, policy, maxBatchDelayMicros, 4096);
+	}
+
+	// takes a consistent snapshot of the bank and writes it to a file, without stopping commands while it runs
+	// the snapshot covers exactly the journal entries written before it started, and is only written once they are
+	// on disk (otherwise a crash could leave a snapshot claiming entries the journal file does not hold)
+	public synchronized void takeSnapshot(Path file) throws IOException {
+		long started = System.nanoTime();
+		BankSnapshot snapshot;
+		CommandJournal currentJournal;
+		snapshotCut.writeLock().lock();
+		try {
+			currentJournal = journal;
+			snapshot = new BankSnapshot(snapshotEpoch + 1, currentJournal == null ? 0 : currentJournal.getAppendedSequence(),
+					currentDate().getTime(), endOfDay, accountNumbers.getNextIndex(), Loan.getNextID());
+			runningSnapshot = snapshot;
+			snapshotEpoch = snapshot.epoch;
+		} finally {
+			snapshotCut.writeLock().unlock();
+		}
+		List<BankSnapshot.CustomerImage> images = new ArrayList<>();
+		try {
+			for(Map.Entry<String, Customer> entry : customers.entrySet()) {
+				Customer customer = entry.getValue();
+				customer.lock();
+				try {
+					preserveForSnapshot(customer);
+				} finally {
+					customer.unlock();
+				}
+				// customers created after the snapshot started have no copy and are left out
+				BankSnapshot.CustomerImage image = snapshot.getImage(customer);
+				if(image != null) {
+					image.userName = entry.getKey();
+					images.add(image);
+				}
+			}
+		} finally {
+			runningSnapshot = null;
+		}
+		if(currentJournal != null && !currentJournal.awaitSynced(snapshot.journalPosition)) {
+			throw new IOException("Snapshot not written - the journal entries it covers could not be written to disk");
+		}
+		snapshot.write(file, images);
+		System.out.println("Snapshot of " + images.size() + " customers written to " + file + " in " +
+				(System.nanoTime() - started) / 1000000 + " ms");
+	}
+
+	// copies a customer into the running snapshot before a command changes it; the caller holds the customer's lock
+	private void preserveForSnapshot(Customer customer) {
+		BankSnapshot snapshot = runningSnapshot;
+		if(customer != null && snapshot != null && customer.getSnapshotEpoch() < snapshot.epoch) {
+			snapshot.capture(customer);
+			customer.setSnapshotEpoch(snapshot.epoch);
+		}
+	}
+
+	// replaces the bank's contents with those of a snapshot
+	private void restoreSnapshot(BankSnapshot snapshot) {
+		customers.clear();
+		loanOfferMarketPlace.clear();
+		loanRequestMarketPlace.clear();
+		accountsByNumber.clear();
+		accountNumbers = new AccountNumberAllocator(snapshot.nextAccountNumberIndex);
+		Loan.setNextID(snapshot.nextLoanID);
+		synchronized (calendar) {
+			calendar.setTimeInMillis(snapshot.calendarMillis);
+		}
+		endOfDay = snapshot.endOfDay;
+		deadlines.reset(endOfDay);
+		for(BankSnapshot.CustomerImage image : snapshot.orderedCustomers) {
+			Customer customer = new Customer(image.password);
+			customer.setIsAdmin(image.isAdmin);
+			customer.setOverdraft(image.overdraft);
+			customer.setPhoneNo(image.phoneNo);
+			customer.setLandlinePhoneNo(image.landlinePhoneNo);
+			customer.setAddress(image.address);
+			customer.setEmailAddress(image.emailAddress);
+			customer.setPostcode(image.postcode);
+			for(BankSnapshot.AccountImage account : image.accounts) {
+				openAccount(customer, BankSnapshot.restoreAccount(account));
+			}
+			customers.put(image.userName, customer);
+		}
+		Map<String, Loan> loans = new HashMap<>();
+		for(BankSnapshot.LoanImage image : snapshot.loans.values()) {
+			Account lendingAccount = image.lendingSortCode == null ? null :
+					accountsByNumber.get(accountKey(image.lendingSortCode, image.lendingNumber));
+			Account borrowingAccount = image.borrowingSortCode == null ? null :
+					accountsByNumber.get(accountKey(image.borrowingSortCode, image.borrowingNumber));
+			Loan loan = new Loan(image, lendingAccount, borrowingAccount);
+			loans.put(loan.getLoanID(), loan);
+			if(loan.loanStarted && !loan.loanFinished) {
+				deadlines.schedule(loan, loan.nextOverdueDay(endOfDay));
+			}
+			// a loan that has not started is still on the marketplace, as an offer or a request
+			if(!loan.loanStarted && lendingAccount != null && borrowingAccount == null) {
+				loanOfferMarketPlace.put(loan);
+			} else if(!loan.loanStarted && borrowingAccount != null && lendingAccount == null) {
+				loanRequestMarketPlace.put(loan);
+			}
+		}
+		for(BankSnapshot.CustomerImage image : snapshot.orderedCustomers) {
+			Customer customer = customers.get(image.userName);
+			for(String loanID : image.loansOffered) {
+				customer.offerLoan(loans.get(loanID));
+			}
+			for(String loanID : image.loansReceived) {
+				customer.receiveLoan(loans.get(loanID));
+			}
+		}
+	}
+
+	private void replayJournalEntry(CommandJournal.Entry entry) {
+		// commands are re-run at the bank date they originally ran at
+		synchronized (calendar) {
+			calendar.setTimeInMillis(entry.date);
+		}
+		if(entry.type == CommandJournal.NEW_CUSTOMER) {
+			createNewCustomer(entry.customer, entry.text);
+		} else if(entry.type == CommandJournal.END_OF_DAY) {
+			endOfDay(Long.parseLong(entry.text), Loan.epochDay(new Date(entry.date)), new ArrayList<>());
+		} else if(entry.type == CommandJournal.BATCH) {
+			processBatch(new CustomerID(entry.customer), Arrays.asList(entry.text.split("\n")), new StringBuilder());
+		} else {
+			processRequest(new CustomerID(entry.customer), entry.text);
+		}
+	}
+
+	// pushes messages about the customer's loans (e.g. one falling due) to a logged-in session
+	public void addNoticeListener(CustomerID customer, Consumer<String> listener) {
+		Customer c = customers.get(customer.getKey());
+		if(c != null) {
+			c.addNoticeListener(listener);
+		}
+	}
+
+	public void removeNoticeListener(CustomerID customer, Consumer<String> listener) {
+		Customer c = customers.get(customer.getKey());
+		if(c != null) {
+			c.removeNoticeListener(listener);
+		}
+	}
+
+	// runs the end-of-day batch on a background thread every intervalSeconds, and straight after TIMETRAVEL
+	public void scheduleEndOfDay(long intervalSeconds) {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "NewBank end of day");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::runEndOfDay, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		endOfDayScheduler = scheduler;
+	}
+
+	// brings interest on every loan and savings account up to the bank's current date, if it has moved on a day
+	// commands are held back while the batch runs, so its figures are the bank's position at a single moment
+	// returns the batch's report (null if there was nothing to do)
+	public String runEndOfDay() {
+		long journalSequence;
+		String report;
+		List<Runnable> notices = new ArrayList<>();
+		snapshotCut.writeLock().lock();
+		try {
+			long today = Loan.epochDay(currentDate());
+			if(today <= endOfDay) {
+				return null;
+			}
+			// the batch is journaled as one entry so that replay repeats it between the same commands
+			journalSequence = journal(CommandJournal.END_OF_DAY, "", Long.toString(endOfDay));
+			report = endOfDay(endOfDay, today, notices);
+		} finally {
+			snapshotCut.writeLock().unlock();
+		}
+		awaitJournal(journalSequence);
+		// sessions are only written to once every command can run again
+		for(Runnable notice : notices) {
+			notice.run();
+		}
+		System.out.println(report);
+		return report;
+	}
+
+	// adds interest for the days after fromDay up to toDay; the caller holds snapshotCut's write lock (or is replaying)
+	// messages for the borrowers of loans that fell due are added to notices, to be sent once the lock is released
+	private String endOfDay(long fromDay, long toDay, List<Runnable> notices) {
+		long started = System.nanoTime();
+		// first each loan that passed a deadline has its late repayment penalty fixed on the day it fell due
+		// and its borrower is told
+		long[] overdue = new long[1];
+		deadlines.advanceTo(toDay, (loan, day) -> {
+			Customer borrower = loan.getBorrower();
+			if(!loan.loanStarted || loan.loanFinished || borrower == null) {
+				return -1; // repaid since the deadline was set
+			}
+			double owed;
+			borrower.lock();
+			try {
+				preserveForSnapshot(borrower);
+				loan.accrueTo(day);
+				owed = loan.getRepaymentAmount(currentDate());
+			} finally {
+				borrower.unlock();
+			}
+			overdue[0]++;
+			String notice = "NOTICE: " + loan.getLoanID() + " is overdue. A late repayment penalty has been added " +
+					"and " + owed + " is now owed.";
+			notices.add(() -> borrower.notifySessions(notice));
+			// any further deadlines up to toDay are covered by the loan's own accrual below, so after a long
+			// TIMETRAVEL each overdue loan still fires once rather than once per missed term
+			return loan.nextOverdueDay(toDay);
+		});
+		Customer[] everyone = customers.values().toArray(new Customer[0]);
+		EndOfDayBatch.Position position = ForkJoinPool.commonPool().invoke(
+				new EndOfDayBatch(everyone, fromDay, toDay, savingsInterestRate, this::preserveForSnapshot));
+		// savings interest comes out of the bank vault, so the bank's books still balance
+		if(position.vault != null && position.savingsInterest > 0) {
+			Customer vaultOwner = position.vault.getOwner();
+			vaultOwner.lock();
+			try {
+				preserveForSnapshot(vaultOwner);
+				position.vault.withdrawFunds(Money.toPounds(position.savingsInterest));
+			} finally {
+				vaultOwner.unlock();
+			}
+		}
+		endOfDay = toDay;
+		long elapsed = System.nanoTime() - started;
+		String report = "End of day " + currentDate() + " (" + (toDay - fromDay) + " days): " +
+				position.customers + " customers, " + position.accounts + " accounts, " + position.loans + " loans (" +
+				overdue[0] + " overdue) in " +
+				elapsed / 1000000 + " ms (" + position.accounts * 1000000000L / Math.max(1, elapsed) + " accounts/s)\n" +
+				String.format("Savings interest paid: %.2f, loan interest and penalties: %.2f%n" +
+						"Customer deposits: %.2f, loans outstanding: %.2f", Money.toPounds(position.savingsInterest),
+						Money.toPounds(position.loanInterest), Money.toPounds(position.deposits),
+						Money.toPounds(position.loansOutstanding));
+		endOfDayReport = report;
+		return report;
+	}
+
+	// queues a journal entry stamped with the current bank date (returns 0 if there is no journal)
+	private long journal(byte type, String customer, String text) {
+		CommandJournal currentJournal = journal;
+		if(currentJournal == null) {
+			return 0;
+		}
+		return currentJournal.append(new CommandJournal.Entry(type, currentDate().getTime(), customer, text));
+	}
+
+	// waits until a journal entry is durable according to the journal's sync policy
+	private boolean awaitJournal(long journalSequence) {
+		return journalSequence == 0 || journal.awaitDurable(journalSequence);
+	}
+
+	// returns the bank's current date
+	private Date currentDate() {
+		synchronized (calendar) {
+			return calendar.getTime();
+		}
+	}
+
 	// commands from the NewBank customer are processed in this method
-	public synchronized String processRequest(CustomerID customer, String request) {
+	// only the customers a command touches are locked, so commands for unrelated customers run in parallel
+	public String processRequest(CustomerID customer, String request) {
+		StringBuilder response = new StringBuilder();
+		processRequest(customer, request, response);
+		return response.toString();
+	}
+
+	// as above, but writes the response into the caller's builder (e.g. one reused for every request on a connection)
+	// so that long listings are built once, in place, rather than by joining Strings
+	public void processRequest(CustomerID customer, String request, StringBuilder response) {
+		processRequest(customer, new CommandLine(request), response);
+	}
+
+	// as above, for a request that has already been split into tokens (e.g. one received through the binary protocol)
+	// the request is journaled as its tokens joined by spaces, so no token may contain whitespace
+	void processRequest(CustomerID customer, CommandLine requestParams, StringBuilder response) {
+		Command command = requestParams.getCommand();
+		CommandResult result = requestParams.getResult();
+		Customer self = customers.get(customer.getKey());
+		if(self == null) {
+			response.append("FAIL");
+			return;
+		}
+		long requestStarted = System.nanoTime();
+		// badly formatted input is turned away before any lock is taken, so it never holds up other customers
+		String rejection = validateRequest(requestParams);
+		if(rejection != null) {
+			long rejected = System.nanoTime() - requestStarted;
+			commandStats.forCommand(command).record(0, rejected, rejected);
+			response.append(rejection);
+			if(result != null) {
+				result.code = CommandResult.REJECTED;
+			}
+			return;
+		}
+		int responseStart = response.length();
+		boolean bankWide = command != null && command.isBankWide();
+		long journalSequence = 0;
+		long locksAcquired;
+		long executed;
+		while(true) {
+			snapshotCut.readLock().lock();
+			Customer counterparty = lockCustomers(self, requestParams);
+			try {
+				preserveForSnapshot(self);
+				preserveForSnapshot(counterparty);
+				if(bankWide) {
+					sequenceLock.lock();
+				}
+				try {
+					locksAcquired = System.nanoTime();
+					// the journal date is taken before the command runs, as replay resets the calendar to it first
+					// a command that is not bank-wide can run while TIMETRAVEL moves the calendar, so one that depends
+					// on the date uses this one (getDate) rather than reading the calendar again
+					Date date = currentDate();
+					requestParams.setDate(date);
+					dispatchRequest(customer, requestParams, response);
+					executed = System.nanoTime();
+					if(journal != null && command != null && command.isJournaled()) {
+						journalSequence = journal.append(new CommandJournal.Entry(CommandJournal.REQUEST, date.getTime(), customer.getKey(),
+								requestParams.getLine()));
+					}
+				} finally {
+					if(bankWide) {
+						sequenceLock.unlock();
+					}
+				}
+				break;
+			} catch(CounterpartyChanged e) {
+				// nothing was changed, so the command can simply run again with the customer it needs locked
+				response.setLength(responseStart);
+			} finally {
+				unlockCustomers(self, counterparty);
+				snapshotCut.readLock().unlock();
+			}
+		}
+		// the response is only released once the command is in the journal
+		boolean journaled = awaitJournal(journalSequence);
+		commandStats.forCommand(command).record(locksAcquired - requestStarted, executed - locksAcquired,
+				System.nanoTime() - requestStarted);
+		if(!journaled) {
+			response.setLength(responseStart);
+			response.append("We encountered an error. Please try again later.");
+			if(result != null) {
+				result.code = CommandResult.SERVER_ERROR;
+			}
+		}
+	}
+
+	// runs the payments and transfers sent between BATCH and END as one unit, with one combined response
+	// every line is checked before anything is changed, every customer the batch touches is locked for the whole
+	// batch, and if a payment turns out to be short of funds the ones already made are put back; the batch is one
+	// journal entry, so replay also makes all of it or none of it
+	public void processBatch(CustomerID customer, List<String> requests, StringBuilder response) {
+		processBatch(customer, requests, response, null);
+	}
+
+	// as above, also reporting the batch's outcome in result (if not null) the way processRequest does for a command
+	void processBatch(CustomerID customer, List<String> requests, StringBuilder response, CommandResult result) {
+		Customer self = customers.get(customer.getKey());
+		if(self == null) {
+			response.append("FAIL");
+			return;
+		}
+		long requestStarted = System.nanoTime();
+		// the whole batch is parsed and its format checked before any lock is taken
+		CommandLine[] batch = new CommandLine[requests.size()];
+		String rejection = requests.isEmpty() ? "The batch is empty." : null;
+		int length = 0;
+		for(int i = 0; i < batch.length && rejection == null; i++) {
+			length += requests.get(i).length() + 1;
+			batch[i] = new CommandLine(requests.get(i));
+			Command command = batch[i].getCommand();
+			String invalid = validateRequest(batch[i]);
+			if(length > maxBatchLength) {
+				rejection = "A batch can be at most " + maxBatchLength + " characters long.";
+			} else if(command == null || !command.isBatchable()) {
+				rejection = "Line " + (i + 1) + ": only DEPOSIT, MOVE, PAY and PAYACCOUNT can be used in a batch.";
+			} else if(invalid != null) {
+				rejection = "Line " + (i + 1) + ": " + invalid;
+			}
+		}
+		if(rejection != null) {
+			long rejected = System.nanoTime() - requestStarted;
+			commandStats.forCommand(Command.BATCH).record(0, rejected, rejected);
+			response.append("Batch rejected - no changes were made.\n").append(rejection);
+			if(result != null) {
+				result.code = CommandResult.REJECTED;
+			}
+			return;
+		}
+		int responseStart = response.length();
+		long journalSequence = 0;
+		long locksAcquired;
+		long executed;
+		snapshotCut.readLock().lock();
+		Customer[] involved = lockCustomers(self, batch);
+		try {
+			for(Customer c : involved) {
+				preserveForSnapshot(c);
+			}
+			locksAcquired = System.nanoTime();
+			long date = currentDate().getTime();
+			boolean made = runBatch(customer, batch, response, result);
+			executed = System.nanoTime();
+			// a batch that was abandoned changed nothing, so it is not journaled
+			if(made && journal != null) {
+				journalSequence = journal.append(new CommandJournal.Entry(CommandJournal.BATCH, date, customer.getKey(),
+						String.join("\n", requests)));
+			}
+		} finally {
+			for(int i = involved.length - 1; i >= 0; i--) {
+				involved[i].unlock();
+			}
+			snapshotCut.readLock().unlock();
+		}
+		boolean journaled = awaitJournal(journalSequence);
+		commandStats.forCommand(Command.BATCH).record(locksAcquired - requestStarted, executed - locksAcquired,
+				System.nanoTime() - requestStarted);
+		if(!journaled) {
+			response.setLength(responseStart);
+			response.append("We encountered an error. Please try again later.");
+			if(result != null) {
+				result.code = CommandResult.SERVER_ERROR;
+			}
+		}
+	}
+
+	// checks every line of a batch and then makes them in order; the customers involved are all locked
+	// returns false, with every account as it was, if any line could not be made
+	private boolean runBatch(CustomerID customer, CommandLine[] batch, StringBuilder response, CommandResult result) {
+		Transfer[] transfers = new Transfer[batch.length];
+		for(int i = 0; i < batch.length; i++) {
+			transfers[i] = checkBatchLine(customer, batch[i]);
+			if(transfers[i].rejection != null) {
+				response.append("Batch rejected at line ").append(i + 1).append(" - no changes were made.\n")
+						.append(transfers[i].rejection);
+				if(result != null) {
+					result.code = CommandResult.REJECTED;
+				}
+				return false;
+			}
+		}
+		int responseStart = response.length();
+		response.append("Batch of ").append(batch.length).append(" commands completed:");
+		for(int i = 0; i < batch.length; i++) {
+			String outcome = makeTransfer(customer, transfers[i], null);
+			if(!transfers[i].made) {
+				for(int j = i - 1; j >= 0; j--) {
+					undoTransfer(transfers[j]);
+				}
+				response.setLength(responseStart);
+				response.append("Batch failed at line ").append(i + 1).append(" - no changes were made.\n").append(outcome);
+				if(result != null) {
+					result.code = CommandResult.INSUFFICIENT_FUNDS;
+				}
+				return false;
+			}
+			response.append('\n').append(outcome);
+		}
+		return true;
+	}
 
-		String[] requestParams = request.split("\\s+");
+	private Transfer checkBatchLine(CustomerID customer, CommandLine requestParams) {
+		switch(requestParams.getCommand()) {
+			case DEPOSIT:
+				return checkDeposit(customer, requestParams);
+			case MOVE:
+				return checkMove(customer, requestParams);
+			case PAY:
+				return checkPayment(customer, requestParams);
+			default:
+				return checkAccountPayment(customer, requestParams);
+		}
+	}
+
+	// locks the requesting customer and every other customer a batch pays, in lock order, returning them in that order
+	// a batch only uses commands whose counterparty is found from the customer and account maps, so it cannot change
+	private Customer[] lockCustomers(Customer self, CommandLine[] batch) {
+		Map<Customer, Boolean> involved = new IdentityHashMap<>();
+		involved.put(self, Boolean.TRUE);
+		for(CommandLine requestParams : batch) {
+			Customer counterparty = findCounterparty(self, requestParams);
+			if(counterparty != null) {
+				involved.put(counterparty, Boolean.TRUE);
+			}
+		}
+		Customer[] ordered = involved.keySet().toArray(new Customer[0]);
+		Arrays.sort(ordered, (a, b) -> Long.compare(a.getLockOrder(), b.getLockOrder()));
+		for(Customer c : ordered) {
+			c.lock();
+		}
+		return ordered;
+	}
+
+	// thrown by a command that finds it needs a different customer locked than the one findCounterparty chose
+	// (because the marketplace changed in between); it must be thrown before the command has changed anything
+	private static final class CounterpartyChanged extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		CounterpartyChanged() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final CounterpartyChanged counterpartyChanged = new CounterpartyChanged();
+
+	// locks the requesting customer and any other customer the command touches, returning the other customer
+	// two customers are always locked in the same order so that opposing commands cannot deadlock
+	private Customer lockCustomers(Customer self, CommandLine requestParams) {
+		self.lock();
+		Customer counterparty = findCounterparty(self, requestParams);
+		if(counterparty == null || counterparty == self) {
+			return null;
+		}
+		if(counterparty.getLockOrder() < self.getLockOrder()) {
+			self.unlock();
+			counterparty.lock();
+			self.lock();
+		} else {
+			counterparty.lock();
+		}
+		return counterparty;
+	}
+
+	private void unlockCustomers(Customer self, Customer counterparty) {
+		if(counterparty != null) {
+			counterparty.unlock();
+		}
+		self.unlock();
+	}
+
+	// the other customer (if any) whose accounts or details a command reads or changes
+	// called with the requesting customer locked; the handlers re-check everything once both customers are locked
+	private Customer findCounterparty(Customer self, CommandLine requestParams) {
+		Command command = requestParams.getCommand();
+		if(command == null) {
+			return null;
+		}
+		Loan loan;
+		switch(command) {
+			case PAY:
+				return requestParams.size() == 5 ? customers.get(requestParams.get(3)) : null;
+			case PAYACCOUNT:
+				Account payeeAccount = requestParams.size() == 5 ? findAccount(requestParams.get(3), requestParams.get(4)) : null;
+				return payeeAccount != null ? payeeAccount.getOwner() : null;
+			case DEPOSIT:
+			case SETOVERDRAFT:
+				return requestParams.size() > 2 ? customers.get(requestParams.get(2)) : null;
+			case PROMOTE:
+			case DEMOTE:
+			case CHECKPERMISSIONS:
+				return requestParams.size() > 1 ? customers.get(requestParams.get(1)) : null;
+			case OFFERLOAN:
+				loan = predictMatch(loanRequestMarketPlace, requestParams);
+				return loan != null ? loan.getBorrower() : null;
+			case REQUESTLOAN:
+				loan = predictMatch(loanOfferMarketPlace, requestParams);
+				return loan != null ? loan.getLender() : null;
+			case LENDTO:
+				loan = requestParams.size() > 1 ? loanRequestMarketPlace.get(requestParams.get(1)) : null;
+				return loan != null ? loan.getBorrower() : null;
+			case BORROWFROM:
+				loan = requestParams.size() > 1 ? loanOfferMarketPlace.get(requestParams.get(1)) : null;
+				return loan != null ? loan.getLender() : null;
+			case REPAY:
+				loan = requestParams.size() > 1 ? self.getBorrowedLoan(requestParams.get(1)) : null;
+				return loan != null ? loan.getLender() : null;
+			default:
+				return null;
+		}
+	}
+
+	// the loan a new OFFERLOAN or REQUESTLOAN would be matched with if the marketplace does not change first
+	private Loan predictMatch(LoanMarketPlace marketPlace, CommandLine requestParams) {
+		if(requestParams.size() != 4) {
+			return null;
+		}
+		try {
+			return marketPlace.oldestWithTerms(Money.toPounds(requestParams.getAmount(1)), requestParams.getInt(3));
+		} catch(NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private void dispatchRequest(CustomerID customer, CommandLine requestParams, StringBuilder response) {
 
 		if(customers.containsKey(customer.getKey())) {
-			switch(requestParams[0]) {
-				case "HELP":
-					return showHelp();
-				case "SHOWMYACCOUNTS":
-					return showMyAccounts(customer); // this should also show money lent and borrowed
-				case "NEWSAVINGSACCOUNT":
-					return newSavingsAccount(customer, requestParams);
-				case "NEWCHECKINGACCOUNT":
-					return newCheckingAccount(customer, requestParams);
-				case "RENAMEACCOUNT":
-					return renameAccounts(customer, requestParams);
-				case "DEPOSIT":
-					return depositFunds(customer, requestParams);
-				case "SETOVERDRAFT":
-					return overdraft(customer, requestParams);
-				case "CHECKOVERDRAFT":
-					return checkoverdraft(customer);
-				case "MOVE":
-					return transferFunds(customer, requestParams);
-				case "PAY":
-					return makePayment(customer, requestParams);
-				case "OFFERLOAN":
-					return offerLoan(customer, requestParams);
-				case "REQUESTLOAN":
-					return requestLoan(customer, requestParams);
-				case "SHOWLOANS":
-					return showLoans();
-				case "LENDTO":
-					return lendTo(customer, requestParams);
-				case "BORROWFROM":
-					return borrowFrom(customer, requestParams);
-				case "REPAY":
-					return loanRepayment(customer, requestParams);
-				case "REMOVELOAN":
-					return removeLoan(customer, requestParams);
-				case "TIMETRAVEL": // for testing purposes
-					return timeTravel(requestParams);
-				case "LOGOUT":
-					return "LOGOUT";
-				case "SHOWCONTACTDETAILS":
-					return showContactDetails(customer, requestParams);
-				case "CHANGEPOSTCODE":
-					return changePostcode(customer, requestParams);
-				case "CHANGEMYADDRESS":
-					return changeAddress(customer, requestParams);
-				case "CHANGEMYEMAIL":
-					return changeEmail(customer, requestParams);
-				case "CHANGEMYMOBILE":
-					return changeMobilePhone(customer, requestParams);
-				case "CHANGEMYLANDLINE":
-					return changeLandlinePhone(customer, requestParams);
-				case "PROMOTE":
-					return promote(customer, requestParams);
-				case "DEMOTE":
-					return demote(customer, requestParams);
-				case "CHECKPERMISSIONS":
-					return checkPermissions(customer, requestParams);
-				default:
-					return "Invalid input. Please try again or type 'HELP' for available options.";
-			}
-		}
-		return "FAIL";
+			Command command = requestParams.getCommand();
+			if(command == null) {
+				response.append("Invalid input. Please try again or type 'HELP' for available options.");
+				if(requestParams.getResult() != null) {
+					requestParams.getResult().code = CommandResult.REJECTED;
+				}
+				return;
+			}
+			handlers[command.ordinal()].handle(customer, requestParams, response);
+			return;
+		}
+		response.append("FAIL");
 	}
 
 	// displays information about all accounts and loans held by the customer
-	private String showMyAccounts(CustomerID customerID) {
+	// (a client that wants a structured result gets a copy of each account instead)
+	private void showMyAccounts(CustomerID customerID, CommandResult result, StringBuilder response) {
 		Customer customer = customers.get(customerID.getKey());
-		String accountData = "Accounts\n--------\n";
-		accountData += customer.accountsToString();
+		if(result != null) {
+			result.accounts = new ArrayList<>();
+			for(Account account : customer.getAccounts()) {
+				result.accounts.add(BankSnapshot.captureAccount(account));
+			}
+			return;
+		}
+		response.append("Accounts\n--------\n");
+		customer.appendAccounts(response);
 		if (customer.numLoansOffered() > 0) {
-			accountData += "\n-------------\nLoans Offered\n-------------" +
-					customer.showLoansOffered(calendar.getTime());
+			response.append("\n-------------\nLoans Offered\n-------------");
+			customer.appendLoansOffered(response, currentDate());
 		}
 		if (customer.numLoansReceived() > 0) {
-			accountData += "\n--------------\nLoans Received\n--------------" +
-					customer.showLoansReceived(calendar.getTime());
+			response.append("\n--------------\nLoans Received\n--------------");
+			customer.appendLoansReceived(response, currentDate());
 		}
-		return accountData;
 	}
 
-	private String promote(CustomerID customer, String[] requestParams) {
-		if(requestParams.length != 2) return "Invalid input. Please try again.";
+	private String promote(CustomerID customer, CommandLine requestParams) {
+		if(requestParams.size() != 2) return "Invalid input. Please try again.";
 		if(!customers.get(customer.getKey()).getIsAdmin()) return "You do not have permissions to do this. Please contact your admin.";
-		Customer user = customers.get(requestParams[1]);
+		Customer user = customers.get(requestParams.get(1));
 		if(user == null) return "User does not exist. Please try again.";
-		if(user.getIsAdmin()) return requestParams[1] + " already has admin privileges.";
+		if(user.getIsAdmin()) return requestParams.get(1) + " already has admin privileges.";
 		user.setIsAdmin(true);
-		return requestParams[1] + " has been granted admin privileges.";
+		return requestParams.get(1) + " has been granted admin privileges.";
 	}
 
-	private String demote(CustomerID customer, String[] requestParams) {
-		if(requestParams.length != 2) return "Invalid input. Please try again.";
+	private String demote(CustomerID customer, CommandLine requestParams) {
+		if(requestParams.size() != 2) return "Invalid input. Please try again.";
 		if(!customers.get(customer.getKey()).getIsAdmin()) return "You do not have permissions to do this. Please contact your admin.";
-		Customer user = customers.get(requestParams[1]);
+		Customer user = customers.get(requestParams.get(1));
 		if(user == null) return "User does not exist. Please try again.";
-		if(!user.getIsAdmin()) return requestParams[1] + " is a regular user.";
+		if(!user.getIsAdmin()) return requestParams.get(1) + " is a regular user.";
 		user.setIsAdmin(false);
-		return requestParams[1] + " has been demoted to a regular user.";
+		return requestParams.get(1) + " has been demoted to a regular user.";
 	}
 
-	private String checkPermissions(CustomerID customer, String[] requestParams) {
-		if(requestParams.length != 2) return "Invalid input. Please try again.";
+	private String checkPermissions(CustomerID customer, CommandLine requestParams) {
+		if(requestParams.size() != 2) return "Invalid input. Please try again.";
 		if(!customers.get(customer.getKey()).getIsAdmin()) return "You do not have permissions to do this. Please contact your admin.";
-		Customer user = customers.get(requestParams[1]);
+		Customer user = customers.get(requestParams.get(1));
 		if(user == null) return "User does not exist. Please try again.";
-		if(user.getIsAdmin()) return requestParams[1] + " has admin privileges";
-		return requestParams[1] + " is a regular user";
+		if(user.getIsAdmin()) return requestParams.get(1) + " has admin privileges";
+		return requestParams.get(1) + " is a regular user";
 	}
 
-	private String overdraft(CustomerID customer, String[] requestParams) {
+	// reports latency percentiles for each command; STATS RESET clears them
+	private String showStats(CustomerID customer, CommandLine requestParams) {
+		if(!customers.get(customer.getKey()).getIsAdmin()) return "You do not have permissions to do this. Please contact your admin.";
+		if(requestParams.size() == 2 && requestParams.tokenEquals(1, "RESET")) {
+			commandStats.reset();
+			return "Command statistics have been reset.";
+		}
+		if(requestParams.size() != 1) return "Invalid input. Try STATS or STATS RESET";
+		String lastEndOfDay = endOfDayReport;
+		return lastEndOfDay == null ? commandStats.report() : commandStats.report() + "\n" + lastEndOfDay;
+	}
+
+	private String overdraft(CustomerID customer, CommandLine requestParams) {
 		if(!customers.get(customer.getKey()).getIsAdmin()) return "You do not have permissions to change overdraft limits. Please contact your admin.";
-		if(requestParams.length!=3) return "Invalid entry.";
-		if(!isNumeric(requestParams[1])) return "Invalid entry.";
-		Integer overdraft = -Integer.valueOf(requestParams[1]);
-		Customer client = customers.get(requestParams[2]);
+		if(requestParams.size()!=3) return "Invalid entry.";
+		Integer overdraft;
+		try {
+			overdraft = -requestParams.getInt(1);
+		} catch (NumberFormatException e) {
+			return "Invalid entry.";
+		}
+		Customer client = customers.get(requestParams.get(2));
 		if(client!=null) {
 			client.setOverdraft(overdraft);
 		} else {
-			return "User " + requestParams[2] + " does not exist";
+			return "User " + requestParams.get(2) + " does not exist";
 		}
 
-		return "The overdraft for " + requestParams[2] + " has been set as -" + requestParams[1];
+		return "The overdraft for " + requestParams.get(2) + " has been set as -" + requestParams.get(1);
 	}
 
 	private String checkoverdraft(CustomerID customer) {
 		return "Your overdraft limit is set to: " + customers.get(customer.getKey()).getOverdraft();
 	}
 
-	private String showContactDetails(CustomerID customer, String[] requestParams) {
-		if(requestParams.length > 1) return "Incorrect format.";
-		String details = "";
-		String address = customers.get(customer.getKey()).getAddress();
-		String postcode = customers.get(customer.getKey()).getPostcode();
-		String phone = customers.get(customer.getKey()).getPhoneNo();
-		String landline = customers.get(customer.getKey()).getLandlinePhoneNo();
-		String email = customers.get(customer.getKey()).getEmailAddress();
+	private void showContactDetails(CustomerID customer, CommandLine requestParams, StringBuilder response) {
+		if(requestParams.size() > 1) {
+			response.append("Incorrect format.");
+			return;
+		}
+		Customer c = customers.get(customer.getKey());
+		String address = c.getAddress();
+		String postcode = c.getPostcode();
+		String phone = c.getPhoneNo();
+		String landline = c.getLandlinePhoneNo();
+		String email = c.getEmailAddress();
 
 		if(address == null && postcode == null && phone == null && email == null && landline == null) {
-			return "No contact details have been added yet.";
+			response.append("No contact details have been added yet.");
+			return;
 		}
-		details += "Contact Details\n---------------";
+		response.append("Contact Details\n---------------");
 		if(address!=null) {
-			details += "\nAddress: " + address;
+			response.append("\nAddress: ").append(address);
 		}
 		if(postcode!=null) {
-			details += "\nPostcode: " + postcode;
+			response.append("\nPostcode: ").append(postcode);
 		}
 		if(phone!=null) {
-			details += "\nMobile phone no: " + phone;
+			response.append("\nMobile phone no: ").append(phone);
 		}
 		if(landline!=null) {
-			details += "\nLandline phone no: " + landline;
+			response.append("\nLandline phone no: ").append(landline);
 		}
 		if(email!=null) {
-			details += "\nEmail address: " + email;
+			response.append("\nEmail address: ").append(email);
 		}
-		return details;
 	}
 
-	private String changeAddress(CustomerID customer, String[] requestParams) {
-		String address = "";
-		if(requestParams.length > 1) {
-			for(int i=1;i<requestParams.length;i++) {
-				address += requestParams[i];
-				if(i!=requestParams.length-1) address += " ";
+	// the length of the address CHANGEMYADDRESS sets: its words joined by single spaces
+	private static int addressLength(CommandLine requestParams) {
+		int length = requestParams.size() - 2;
+		for(int i=1;i<requestParams.size();i++) {
+			length += requestParams.get(i).length();
+		}
+		return length;
+	}
+
+	private String changeAddress(CustomerID customer, CommandLine requestParams) {
+		if(requestParams.size() > 1) {
+			StringBuilder joined = new StringBuilder();
+			for(int i=1;i<requestParams.size();i++) {
+				joined.append(requestParams.get(i));
+				if(i!=requestParams.size()-1) joined.append(' ');
 			}
+			String address = joined.toString();
 			customers.get(customer.getKey()).setAddress(address);
 			return "Address changed to " + address + ".";
 		}
 		return "Incorrect format.";
 	}
 
-	private String changePostcode(CustomerID customer, String[] requestParams) {
-		// Regex based on assets.publishing.service.gov.uk
-		String postcode;
-		if(requestParams.length == 3) {
-			postcode = requestParams[1] + " " + requestParams[2];
-			String regex = "^([Gg][Ii][Rr] 0[Aa]{2})|((([A-Za-z][0-9]{1,2})|(([A-Za-z][A-Ha-hJ-Yj-y][0-9]{1,2})|(([AZa-z][0-9][A-Za-z])|([A-Za-z][A-Ha-hJ-Yj-y][0-9]?[A-Za-z])))) [0-9][A-Za-z]{2})$";
-			Pattern pattern = Pattern.compile(regex);
-			Matcher matcher = pattern.matcher(postcode);
-			if(matcher.matches()) {
-				customers.get(customer.getKey()).setPostcode(postcode);
-				return "Postcode changed to " + postcode + ".";
-			}
-		}
-		return "Incorrect format.";
+	// the contact detail commands are only run once their format has been checked (see validateRequest)
+	private String changePostcode(CustomerID customer, CommandLine requestParams) {
+		String postcode = requestParams.get(1) + " " + requestParams.get(2);
+		customers.get(customer.getKey()).setPostcode(postcode);
+		return "Postcode changed to " + postcode + ".";
 	}
 
-	private String changeEmail(CustomerID customer, String[] requestParams) {
-		if(requestParams.length == 2){
-			// Regex based on https://www.regular-expressions.info/email.html
-			String regex = "\\b[A-Za-z0-9._%+-]+@[A-Za-z0-9.-]+\\.[A-Za-z]{2,}\\b";
-			Pattern pattern = Pattern.compile(regex);
-			Matcher matcher = pattern.matcher(requestParams[1]);
-			if(matcher.matches()) {
-				customers.get(customer.getKey()).setEmailAddress(requestParams[1]);
-				return "Email address changed to " + requestParams[1] + ".";
-			}
-		}
-		return "Incorrect format.";
+	private String changeEmail(CustomerID customer, CommandLine requestParams) {
+		customers.get(customer.getKey()).setEmailAddress(requestParams.get(1));
+		return "Email address changed to " + requestParams.get(1) + ".";
 	}
 
-	private String changeMobilePhone(CustomerID customer, String[] requestParams) {
-		String phone = "";
-		if(requestParams.length > 1) {
-			for(int i=1;i<requestParams.length;i++) {
-				phone += requestParams[i];
-			}
-		} else {
-			return "Incorrect format.";
-		}
-		// Regex based on https://www.regextester.com/104299
-		String regex = "((\\+44(\\s\\(0\\)\\s|\\s0\\s|\\s)?)|0)7\\d{3}(\\s)?\\d{6}";
-		Pattern pattern = Pattern.compile(regex);
-		Matcher matcher = pattern.matcher(phone);
-		if(matcher.matches()) {
-			customers.get(customer.getKey()).setPhoneNo(phone);
-			return "Phone number changed to " + phone + ".";
+	private String changeMobilePhone(CustomerID customer, CommandLine requestParams) {
+		String phone = mobileNumber(requestParams);
+		customers.get(customer.getKey()).setPhoneNo(phone);
+		return "Phone number changed to " + phone + ".";
+	}
+
+	private String changeLandlinePhone(CustomerID customer, CommandLine requestParams) {
+		String phone = landlineNumber(requestParams);
+		customers.get(customer.getKey()).setLandlinePhoneNo(phone);
+		return "Landline phone number changed to " + phone + ".";
+	}
+
+	// a mobile number may be entered with spaces, which are removed
+	private static String mobileNumber(CommandLine requestParams) {
+		StringBuilder phone = new StringBuilder();
+		for(int i=1;i<requestParams.size();i++) {
+			phone.append(requestParams.get(i));
 		}
-		return "Incorrect format.";
+		return phone.toString();
 	}
 
-	private String changeLandlinePhone(CustomerID customer, String[] requestParams) {
-		if(requestParams.length!=4) return "Incorrect format.";
-		String phone = requestParams[1] + " " + requestParams[2] + " " + requestParams[3];
-		// Regex based on https://regexlib.com/
-		String regex = "^((\\(?0\\d{4}\\)?\\s?\\d{3}\\s?\\d{3})|(\\(?0\\d{3}\\)?\\s?\\d{3}\\s?\\d{4})|(\\(?0\\d{2}\\)?\\s?\\d{4}\\s?\\d{4}))(\\s?\\#(\\d{4}|\\d{3}))?$";
-		Pattern pattern = Pattern.compile(regex);
-		Matcher matcher = pattern.matcher(phone);
-		if(matcher.matches()) {
-			customers.get(customer.getKey()).setLandlinePhoneNo(phone);
-			return "Landline phone number changed to " + phone + ".";
+	private static String landlineNumber(CommandLine requestParams) {
+		return requestParams.get(1) + " " + requestParams.get(2) + " " + requestParams.get(3);
+	}
+
+	// checks the format of a command's arguments before any lock is taken
+	// returns the response for a badly formatted command, or null if it can go ahead
+	private static String validateRequest(CommandLine requestParams) {
+		if(requestParams.getLine().length() > maxRequestLength) {
+			return "Request rejected. A request can be at most " + maxRequestLength + " characters long.";
+		}
+		Command command = requestParams.getCommand();
+		if(command == null) {
+			return null;
+		}
+		switch(command) {
+			case CHANGEMYADDRESS:
+				return requestParams.size() > 1 && addressLength(requestParams) <= maxAddressLength ? null :
+						"Incorrect format. An address can be at most " + maxAddressLength + " characters long.";
+			case CHANGEPOSTCODE:
+				return requestParams.size() == 3 &&
+						Validators.isPostcode(requestParams.get(1) + " " + requestParams.get(2)) ? null : "Incorrect format.";
+			case CHANGEMYEMAIL:
+				return requestParams.size() == 2 && Validators.isEmail(requestParams.get(1)) ? null : "Incorrect format.";
+			case CHANGEMYMOBILE:
+				return requestParams.size() > 1 && Validators.isMobile(mobileNumber(requestParams)) ? null : "Incorrect format.";
+			case CHANGEMYLANDLINE:
+				return requestParams.size() == 4 && Validators.isLandline(landlineNumber(requestParams)) ? null : "Incorrect format.";
+			default:
+				return null;
 		}
-		return "Incorrect format.";
 	}
 
-	private String renameAccounts(CustomerID customer, String[] requestParams) {
+	private String renameAccounts(CustomerID customer, CommandLine requestParams) {
 		String current;
 		String renamed;
-		if(requestParams.length != 3) {
+		if(requestParams.size() != 3) {
 			return "Invalid input. Try again";
 		} else {
-			current = requestParams[1];
-			renamed = requestParams[2];
-			for(Account account : customers.get(customer.getKey()).getAccounts()) {
-				if(account.getName().equals(renamed)) {
-					return "Account name already exists. Try again with a unique name.";
-				}
+			current = requestParams.get(1);
+			renamed = requestParams.get(2);
+			Customer c = customers.get(customer.getKey());
+			if(c.getAccount(renamed) != null) {
+				return "Account name already exists. Try again with a unique name.";
 			}
-			if(customers.get(customer.getKey()).getAccount(current) != null) {
-				customers.get(customer.getKey()).getAccount(current).setName(renamed);
-			} else {
+			if(!c.renameAccount(current, renamed)) {
 				return "Account does not exist. Check the spelling and try again.";
 			}
 		}
 		return "Account name changed from " + current + " to " + renamed;
 	}
 
-	private String newSavingsAccount(CustomerID customer, String[] requestParams) {
-		if(requestParams.length == 2){
-			if(isNumeric(requestParams[1])) {
+	private String newSavingsAccount(CustomerID customer, CommandLine requestParams) {
+		if(requestParams.size() == 2){
+			if(requestParams.isNumber(1)) {
 				return "Account name cannot be a number. Try again";
-			} else if (accountNameBlockList(requestParams[1])) {
+			} else if (accountNameBlockList(requestParams.get(1))) {
 				return "Account name is invalid. Try again";
 			} else {
-				String accountName = requestParams[1];
-				customers.get(customer.getKey()).addAccount(new SavingsAccount(sortCode, assignAccountNumber(), accountName,0.00));
+				String accountName = requestParams.get(1);
+				if(customers.get(customer.getKey()).getAccount(accountName) != null) {
+					return "Account name already exists. Try again with a unique name.";
+				}
+				openAccount(customers.get(customer.getKey()), new SavingsAccount(sortCode, assignAccountNumber(), accountName,0.00));
 				return "Account created: " + accountName;
 			}
 		}
 		return "Invalid entry. Try NEWSAVINGSACCOUNT <account name>";
 	}
 
-	private String newCheckingAccount(CustomerID customer, String[] requestParams) {
-		if(requestParams.length == 2){
-			if(isNumeric(requestParams[1])) {
+	private String newCheckingAccount(CustomerID customer, CommandLine requestParams) {
+		if(requestParams.size() == 2){
+			if(requestParams.isNumber(1)) {
 				return "Account name cannot be a number. Try again";
-			} else if (accountNameBlockList(requestParams[1])) {
+			} else if (accountNameBlockList(requestParams.get(1))) {
 				return "Account name is invalid. Try again";
 			} else {
-				String accountName = requestParams[1];
-				customers.get(customer.getKey()).addAccount(new CheckingAccount(sortCode, assignAccountNumber(), accountName,0.00));
+				String accountName = requestParams.get(1);
+				if(customers.get(customer.getKey()).getAccount(accountName) != null) {
+					return "Account name already exists. Try again with a unique name.";
+				}
+				openAccount(customers.get(customer.getKey()), new CheckingAccount(sortCode, assignAccountNumber(), accountName,0.00));
 				return "Account created: " + accountName;
 			}
 		}
 		return "Invalid entry. Try NEWCHECKINGACCOUNT <account name>";
 	}
 
-	//method to check if a String is Numeric. Useful when checking user input
-	private boolean isNumeric(String string) {
-		String regex = "-?\\d+(\\.\\d+)?";
-		return Pattern.matches(regex, string);
+	private int assignAccountNumber() {
+		return accountNumbers.allocate();
 	}
 
-	private int assignAccountNumber() {
-		Random r = new Random();
-		//generate a random account number that is not in current list
-		while (accountNumberList.contains(accountNumberCurrent)) {
-			accountNumberCurrent = r.nextInt((79999999-70000000) + 1) + 70000000;
+	// adds a new account to a customer and records it in the bank-wide account number index
+	private boolean openAccount(Customer customer, Account account) {
+		if(!customer.addAccount(account)) {
+			return false;
 		}
-		accountNumberList.add(accountNumberCurrent);
-		System.out.println("Account number assigned: " + accountNumberCurrent);
-		return accountNumberCurrent;
+		accountsByNumber.put(accountKey(account.getAccountSortCode(), account.getAccountNumber()), account);
+		return true;
+	}
+
+	// packs a sort code ("07-16-18" or "071618") and an account number into a single index key
+	// returns -1 if the sort code is not six digits
+	// the account number must be one the allocator can hand out, so that no two sort code / number pairs share a key
+	private static long accountKey(String sortCode, int accountNumber) {
+		long digits = sortCodeDigits(sortCode);
+		if(digits < 0 || accountNumber < AccountNumberAllocator.FIRST_NUMBER || accountNumber > AccountNumberAllocator.LAST_NUMBER) {
+			return -1;
+		}
+		return digits * 100000000L + accountNumber;
+	}
+
+	// the six digits of a sort code written as NN-NN-NN or NNNNNN (-1 if it is written any other way)
+	private static long sortCodeDigits(String sortCode) {
+		boolean dashed = sortCode.length() == 8;
+		if(!dashed && sortCode.length() != 6) {
+			return -1;
+		}
+		long digits = 0;
+		for(int i = 0; i < sortCode.length(); i++) {
+			char c = sortCode.charAt(i);
+			if(dashed && (i == 2 || i == 5)) {
+				if(c != '-') {
+					return -1;
+				}
+			} else if(c >= '0' && c <= '9') {
+				digits = digits * 10 + (c - '0');
+			} else {
+				return -1;
+			}
+		}
+		return digits;
+	}
+
+	// finds any account in the bank from its sort code and account number (null if there is no such account)
+	// the account number must be exactly eight digits
+	private Account findAccount(String sortCode, String accountNumber) {
+		if(accountNumber.length() != 8) {
+			return null;
+		}
+		int number = 0;
+		for(int i = 0; i < accountNumber.length(); i++) {
+			char c = accountNumber.charAt(i);
+			if(c < '0' || c > '9') {
+				return null;
+			}
+			number = number * 10 + (c - '0');
+		}
+		long key = accountKey(sortCode, number);
+		return key < 0 ? null : accountsByNumber.get(key);
 	}
 
 	private boolean accountNameBlockList(String string) {
@@ -431,11 +1186,17 @@ public class NewBank {
 				"be transferred, the account name to withdraw from, and the account name to deposit to.\n" +
 				"PAY - Make a payment to another bank account; enter the command followed by the payment amount, " +
 				"account to pay from, name of the payee, and the account name of the payee.\n" +
+				"PAYACCOUNT - Make a payment to any account at the bank; enter the command followed by the payment " +
+				"amount, account to pay from, the payee's sort code and the payee's account number.\n" +
 				"OFFERLOAN - Lend money directly to other members of the bank; enter the command followed by the " +
-				"amount to lend, the account to pay from, and the duration (in weeks) of the loan.\n" +
+				"amount to lend, the account to pay from, and the duration (in weeks) of the loan. The offer is matched " +
+				"straight away with any request for the same amount and duration.\n" +
 				"REQUESTLOAN - Borrow momey directly from other members of the bank; enter the command followed by " +
-				"the amount to borrow, the account to pay into, and the duration (in weeks) to borrow for.\n" +
-				"SHOWLOANS - Displays a list of all loans that are currently available.\n" +
+				"the amount to borrow, the account to pay into, and the duration (in weeks) to borrow for. The request " +
+				"is matched straight away with any offer for the same amount and duration.\n" +
+				"SHOWLOANS - Displays the loans that are currently available, " + defaultLoanPageSize + " at a time; " +
+				"optionally followed by OFFERS or REQUESTS, filters (MINAMOUNT, MAXAMOUNT, MINRATE, MAXRATE, MINDURATION, " +
+				"MAXDURATION), SORTBY AMOUNT|RATE|DURATION, LIMIT <n> and AFTER <cursor> to see the next page.\n" +
 				"LENDTO - Fulfill a loan request; enter the command followed by the name of the loan and the name of " +
 				"the account you would like to lend money from.\n" +
 				"BORROWFROM - Apply for a loan; enter the command followed by the name of the loan and the name of the " +
@@ -451,6 +1212,8 @@ public class NewBank {
 				"CHANGEMYEMAIL <NEW EMAIL NO> - change your email address\n" +
 				"CHANGEMYMOBILE <NEW PHONE NO> - change your mobile phone number in a format +44XXXXXXXXXX or 0XXXXXXXXXX\n" +
 				"CHANGEMYLANDLINE <NEW PHONE NO> - change your landline phone number in a format 0XXXX XXX XXX\n" +
+				"BATCH - Makes several payments or transfers (DEPOSIT, MOVE, PAY, PAYACCOUNT) as one; send BATCH on a " +
+				"line of its own, then one command on each line, then END. Either every command is made or none are.\n" +
 				"LOGOUT - Logs you out from the NewBank command line application.\n" +
     				"*********** ADMIN ONLY ***********\n" +
 				"DEPOSIT <AMOUNT> <CUSTOMER> <CUSTOMER'S ACCOUNT NAME> - Adds funds to one of your accounts; enter the command followed by the balance to be\n" +
@@ -458,59 +1221,59 @@ public class NewBank {
 				"SETOVERDRAFT <AMOUNT (positive)> <CUSTOMER> - set an overdraft amount for the customer\n" +
 				"CHECKPERMISSIONS <CUSTOMER> - checks if a user is an admin or a regular user\n" +
 				"PROMOTE <CUSTOMER> - promote a user to Admin\n" +
-				"DEMOTE <CUSTOMER> - demote Admin to regular user";
+				"DEMOTE <CUSTOMER> - demote Admin to regular user\n" +
+				"STATS - shows how long each command takes (STATS RESET clears the figures) and the last end-of-day figures";
 	}
 
 	// deposits money into a specified account
-	private String depositFunds(CustomerID customer, String[] requestParams) {
-		if(requestParams.length!=4) return "Invalid parameters. Please try again.";
-		if(!customers.get(customer.getKey()).getIsAdmin()) return "You do not have permissions to make deposits. Please contact your admin.";
-		String[] bankDetails = {"PAY",requestParams[1],"Bank Vault",requestParams[2],requestParams[3]};
-		return makePayment(customer,bankDetails);
+	private String depositFunds(CustomerID customer, CommandLine requestParams) {
+		return makeTransfer(customer, checkDeposit(customer, requestParams), requestParams.getResult());
+	}
+
+	private Transfer checkDeposit(CustomerID customer, CommandLine requestParams) {
+		if(requestParams.size()!=4) return new Transfer("Invalid parameters. Please try again.");
+		if(!customers.get(customer.getKey()).getIsAdmin()) return new Transfer("You do not have permissions to make deposits. Please contact your admin.");
+		CommandLine bankDetails = new CommandLine("PAY",requestParams.get(1),"Bank Vault",requestParams.get(2),requestParams.get(3));
+		return checkPayment(customer,bankDetails);
 	}
 
 	// transfers money between two accounts belonging to the same customer
-	private String transferFunds(CustomerID customer, String[] requestParams) {
+	private String transferFunds(CustomerID customer, CommandLine requestParams) {
+		return makeTransfer(customer, checkMove(customer, requestParams), requestParams.getResult());
+	}
+
+	private Transfer checkMove(CustomerID customer, CommandLine requestParams) {
 		// confirm that the correct number of parameters have been input
-		if(requestParams.length == 4) {
+		if(requestParams.size() == 4) {
 			// confirm that input parameters are valid, and provide prompts to the user if not
 			String userPrompts = "";
-			double transferAmount = 0;
-			boolean inputsValid = true;
+			long transferAmount = 0;
 			try {
-				transferAmount = Double.parseDouble(requestParams[1]);
+				transferAmount = requestParams.getAmount(1);
 				if(transferAmount <= 0) {
 					// a transfer amount must be positive
-					userPrompts += "\nTransfer amount '" + requestParams[1] + "' is not valid.";
-					inputsValid = false;
+					userPrompts += "\nTransfer amount '" + requestParams.get(1) + "' is not valid.";
+				} else if(transferAmount > maxTransferAmount) {
+					userPrompts += "\nTransfer amount '" + requestParams.get(1) + "' is over the limit of " +
+							Money.format(maxTransferAmount) + ".";
 				}
 			} catch (NumberFormatException e) {
-				userPrompts += "\nTransfer amount '" + requestParams[1] + "' is not valid.";
-				inputsValid = false;
+				userPrompts += "\nTransfer amount '" + requestParams.get(1) + "' is not valid.";
 			}
-			Account withdrawalAccount = customers.get(customer.getKey()).getAccount(requestParams[2]);
+			Account withdrawalAccount = customers.get(customer.getKey()).getAccount(requestParams.get(2));
 			if(withdrawalAccount == null) {
-				userPrompts += "\nAccount for withdrawal '" + requestParams[2] + "' does not exist.";
-				inputsValid = false;
+				userPrompts += "\nAccount for withdrawal '" + requestParams.get(2) + "' does not exist.";
 			}
-			Account depositAccount = customers.get(customer.getKey()).getAccount(requestParams[3]);
+			Account depositAccount = customers.get(customer.getKey()).getAccount(requestParams.get(3));
 			if(depositAccount == null) {
-				userPrompts += "\nAccount for deposit '" + requestParams[3] + "' does not exist.";
-			}
-			if(inputsValid && transferAmount > withdrawalAccount.getBalance()) {
-				userPrompts += "\nInsufficient funds in " + withdrawalAccount.toString();
+				userPrompts += "\nAccount for deposit '" + requestParams.get(3) + "' does not exist.";
 			}
 			if(userPrompts.length() > 0) {
-				return "Transfer could not be made:" + userPrompts;
+				return new Transfer("Transfer could not be made:" + userPrompts);
 			}
-			// transfer funds between the specified accounts
-			withdrawalAccount.withdrawFunds(transferAmount);
-			depositAccount.depositFunds(transferAmount);
-			
-			return transferAmount + " transferred from " + withdrawalAccount.getName() + " to " +
-					depositAccount.getName() + displayChangedAccounts(customer,withdrawalAccount,depositAccount);
+			return new Transfer(withdrawalAccount, depositAccount, transferAmount, 0, true);
 		}
-		return "Invalid entry. Try MOVE <amount> <account to withraw from> <account to deposit to>";
+		return new Transfer("Invalid entry. Try MOVE <amount> <account to withraw from> <account to deposit to>");
 	}
 	
 	private String displayChangedAccounts(CustomerID customer, Account withdrawalAccount, Account depositAccount) {
@@ -524,63 +1287,174 @@ public class NewBank {
 	}
 
 	// makes a payment to another customer in the same bank
-	private String makePayment(CustomerID customer, String[] requestParams) {
+	private String makePayment(CustomerID customer, CommandLine requestParams) {
+		return makeTransfer(customer, checkPayment(customer, requestParams), requestParams.getResult());
+	}
+
+	private Transfer checkPayment(CustomerID customer, CommandLine requestParams) {
 		// confirm that the correct number of parameters have been input
-		Integer overdraft = customers.get(customer.getKey()).getOverdraft();
-		if(requestParams.length == 5) {
+		if(requestParams.size() == 5) {
 			// confirm that input parameters are valid, and provide prompts to the user if not
 			String userPrompts = "";
-			double paymentAmount = 0;
-			boolean inputsValid = true;
+			long paymentAmount = 0;
 			try {
-				paymentAmount = Double.parseDouble(requestParams[1]);
+				paymentAmount = requestParams.getAmount(1);
 				if(paymentAmount <= 0) {
 					// a transfer amount must be positive
-					userPrompts += "\nPayment amount '" + requestParams[1] + "' is not valid.";
-					inputsValid = false;
-					return userPrompts;
+					userPrompts += "\nPayment amount '" + requestParams.get(1) + "' is not valid.";
+					return new Transfer(userPrompts);
+				} else if(paymentAmount > maxTransferAmount) {
+					userPrompts += "\nPayment amount '" + requestParams.get(1) + "' is over the limit of " +
+							Money.format(maxTransferAmount) + ".";
+					return new Transfer(userPrompts);
 				}
 			} catch (NumberFormatException e) {
-				userPrompts += "\nPayment amount '" + requestParams[1] + "' is not valid.";
-				inputsValid = false;
-				return userPrompts;
+				userPrompts += "\nPayment amount '" + requestParams.get(1) + "' is not valid.";
+				return new Transfer(userPrompts);
 			}
-			Account withdrawalAccount = customers.get(customer.getKey()).getAccount(requestParams[2]);
+			Account withdrawalAccount = customers.get(customer.getKey()).getAccount(requestParams.get(2));
 			if(withdrawalAccount == null) {
-				userPrompts += "\nAccount for withdrawal '" + requestParams[2] + "' does not exist.";
-				inputsValid = false;
-				return userPrompts;
+				userPrompts += "\nAccount for withdrawal '" + requestParams.get(2) + "' does not exist.";
+				return new Transfer(userPrompts);
 			} else if(!withdrawalAccount.canPay) {
 				userPrompts += "\n'" + withdrawalAccount.getName() + "' account cannot perform payments to other customers.";
-				inputsValid = false;
-				return userPrompts;
+				return new Transfer(userPrompts);
 			}
-			Customer payee = customers.get(requestParams[3]);
+			Customer payee = customers.get(requestParams.get(3));
 			if(payee == null) {
 				// This doesn't work as expected (returns an infinite loop of "null")
 				// TODO - fixing the invalid username/password issue that is on Trello might solve this problem
-				userPrompts += "Payee '" + requestParams[3] + "' does not exist.";
-				return userPrompts;
+				userPrompts += "Payee '" + requestParams.get(3) + "' does not exist.";
+				return new Transfer(userPrompts);
 			}
-			Account payeeAccount = payee.getAccount(requestParams[4]);
+			Account payeeAccount = payee.getAccount(requestParams.get(4));
 			if (payeeAccount == null) {
-				userPrompts += "\nPayee account, '" + requestParams[4] + "' does not exist.";
-			}
-			if(inputsValid && paymentAmount >= withdrawalAccount.getBalance()-overdraft) {
-				userPrompts += "\nInsufficient funds in " + withdrawalAccount.toString();
-				userPrompts += "\n" + checkoverdraft(customer);
+				userPrompts += "\nPayee account, '" + requestParams.get(4) + "' does not exist.";
 			}
 			if(userPrompts.length() > 0) {
-				return "Payment could not be made:" + userPrompts;
+				return new Transfer("Payment could not be made:" + userPrompts);
+			}
+			return checkedPayment(customer, withdrawalAccount, payeeAccount, paymentAmount);
+		}
+		if(requestParams.tokenEquals(2, "Bank Vault")) return new Transfer("Invalid entry. Try DEPOSIT <AMOUNT> <CUSTOMER> <CUSTOMER'S ACCOUNT NAME>");
+		return new Transfer("Invalid entry. Try PAY <amount> <account to pay from> <payee name> <payee account>");
+	}
+
+	// makes a payment to any account in the bank, identified by its sort code and account number
+	private String payAccountNumber(CustomerID customer, CommandLine requestParams) {
+		return makeTransfer(customer, checkAccountPayment(customer, requestParams), requestParams.getResult());
+	}
+
+	private Transfer checkAccountPayment(CustomerID customer, CommandLine requestParams) {
+		if(requestParams.size() != 5) {
+			return new Transfer("Invalid entry. Try PAYACCOUNT <amount> <account to pay from> <payee sort code> <payee account number>");
+		}
+		// confirm that input parameters are valid, and provide prompts to the user if not
+		String userPrompts = "";
+		long paymentAmount = 0;
+		try {
+			paymentAmount = requestParams.getAmount(1);
+			if(paymentAmount <= 0) {
+				userPrompts += "\nPayment amount '" + requestParams.get(1) + "' is not valid.";
+			} else if(paymentAmount > maxTransferAmount) {
+				userPrompts += "\nPayment amount '" + requestParams.get(1) + "' is over the limit of " +
+						Money.format(maxTransferAmount) + ".";
+			}
+		} catch (NumberFormatException e) {
+			userPrompts += "\nPayment amount '" + requestParams.get(1) + "' is not valid.";
+		}
+		Account withdrawalAccount = customers.get(customer.getKey()).getAccount(requestParams.get(2));
+		if(withdrawalAccount == null) {
+			userPrompts += "\nAccount for withdrawal '" + requestParams.get(2) + "' does not exist.";
+		} else if(!withdrawalAccount.canPay) {
+			userPrompts += "\n'" + withdrawalAccount.getName() + "' account cannot perform payments to other customers.";
+		}
+		Account payeeAccount = findAccount(requestParams.get(3), requestParams.get(4));
+		if(payeeAccount == null) {
+			userPrompts += "\nPayee account '" + requestParams.get(3) + " " + requestParams.get(4) + "' does not exist.";
+		}
+		if(userPrompts.length() > 0) {
+			return new Transfer("Payment could not be made:" + userPrompts);
+		}
+		return checkedPayment(customer, withdrawalAccount, payeeAccount, paymentAmount);
+	}
+
+	// a validated payment may take the paying account down to the customer's overdraft limit
+	private Transfer checkedPayment(CustomerID customer, Account withdrawalAccount, Account payeeAccount, long paymentAmount) {
+		Integer overdraft = customers.get(customer.getKey()).getOverdraft();
+		return new Transfer(withdrawalAccount, payeeAccount, paymentAmount, overdraft * Money.PENCE_PER_POUND, false);
+	}
+
+	// a payment or transfer between two accounts whose details have been checked, or the reason it cannot be made
+	private static final class Transfer {
+		final String rejection; // null if the transfer can be attempted
+		final Account from;
+		final Account to;
+		final long amount; // pence
+		final long floor; // the lowest balance the paying account can be left with
+		final boolean ownAccounts; // a MOVE between the customer's own accounts, rather than a payment
+		boolean made;
+
+		Transfer(String rejection) {
+			this(rejection, null, null, 0, 0, false);
+		}
+
+		Transfer(Account from, Account to, long amount, long floor, boolean ownAccounts) {
+			this(null, from, to, amount, floor, ownAccounts);
+		}
+
+		private Transfer(String rejection, Account from, Account to, long amount, long floor, boolean ownAccounts) {
+			this.rejection = rejection;
+			this.from = from;
+			this.to = to;
+			this.amount = amount;
+			this.floor = floor;
+			this.ownAccounts = ownAccounts;
+		}
+	}
+
+	// moves a checked payment or transfer between its accounts - the balance and overdraft check and the withdrawal
+	// are one step, so if it cannot be made nothing is changed (and made stays false)
+	// if the client wants a structured result, the outcome and the paying account's balance are put in it instead
+	// of the text
+	private String makeTransfer(CustomerID customer, Transfer transfer, CommandResult result) {
+		if(transfer.rejection != null) {
+			if(result != null) {
+				result.code = CommandResult.REJECTED;
+			}
+			return transfer.rejection;
+		}
+		boolean made = transfer.from.withdrawIfAvailable(transfer.amount, transfer.floor);
+		if(made) {
+			transfer.to.deposit(transfer.amount);
+			transfer.made = true;
+		}
+		if(result != null) {
+			result.code = made ? CommandResult.OK : CommandResult.INSUFFICIENT_FUNDS;
+			result.hasBalance = true;
+			result.balance = transfer.from.getBalancePence();
+			return "";
+		}
+		if(!made) {
+			if(transfer.ownAccounts) {
+				return "Transfer could not be made:\nInsufficient funds in " + transfer.from.toString();
 			}
-			// make payment
-			withdrawalAccount.withdrawFunds(paymentAmount);
-			payeeAccount.depositFunds(paymentAmount);
-			return "Payment of " + paymentAmount + " successfully made.\n" +
-					"Remaining balance in " + withdrawalAccount.toString();
+			return "Payment could not be made:\nInsufficient funds in " + transfer.from.toString() +
+					"\n" + checkoverdraft(customer);
 		}
-		if(requestParams[2].equals("Bank Vault")) return "Invalid entry. Try DEPOSIT <AMOUNT> <CUSTOMER> <CUSTOMER'S ACCOUNT NAME>";
-		return "Invalid entry. Try PAY <amount> <account to pay from> <payee name> <payee account>";
+		if(transfer.ownAccounts) {
+			return Money.toPounds(transfer.amount) + " transferred from " + transfer.from.getName() + " to " +
+					transfer.to.getName() + displayChangedAccounts(customer, transfer.from, transfer.to);
+		}
+		return "Payment of " + Money.toPounds(transfer.amount) + " successfully made.\n" +
+				"Remaining balance in " + transfer.from.toString();
+	}
+
+	// puts back a transfer that has been made; the owners of both accounts must still be locked
+	private void undoTransfer(Transfer transfer) {
+		transfer.to.withdraw(transfer.amount);
+		transfer.from.deposit(transfer.amount);
+		transfer.made = false;
 	}
 
 	// determine the interest rate that should be used based on the duration of the loan / savings period
@@ -595,29 +1469,38 @@ public class NewBank {
 	}
 
 	// perform lender eligibility checks
-	private String lenderEligibilityChecks(Customer customer, double lendingAmount, Account lendingAccount) {
+	// pending is the customer's own offer waiting on the marketplace when it is about to be matched (null otherwise);
+	// it is already counted in the customer's loans and its funds are already committed, so it is left out of both
+	private String lenderEligibilityChecks(Customer customer, double lendingAmount, Account lendingAccount, Loan pending) {
 		String userPrompts = "";
+		int loansOffered = customer.numLoansOffered();
+		double customerLending = customer.getTotalLoansOffered();
+		double customerFunds = customer.getTotalFunds();
+		if (pending != null) {
+			loansOffered--;
+			customerLending -= pending.getLoanValue();
+			customerFunds += pending.getLoanValue();
+		}
 		// check that the customer's account is allowed to lend money
 		if (!lendingAccount.canLoan) {
 			userPrompts += "\n'" + lendingAccount.getName() + "' account cannot loan money to other customers.";
 		}
 		// check that the customer has sufficient funds in the account to cover the loan amount
-		if (lendingAccount.getBalance() < lendingAmount) {
+		if (pending == null && lendingAccount.getBalance() < lendingAmount) {
 			userPrompts += "\nInsufficient funds in " + lendingAccount;
 		}
 		// check that the customer is not currently borrowing money
 		if (customer.numLoansReceived() > 0) {
 			userPrompts += "\nYou are not eligible to lend money while you have loans to pay back:" +
-					customer.showLoansReceived(calendar.getTime());
+					customer.showLoansReceived(currentDate());
 		}
 		// check that the customer is not trying to offer more loans than is permitted by the bank
-		if (customer.numLoansOffered() == lenderLoanLimit) {
+		if (loansOffered == lenderLoanLimit) {
 			userPrompts += "\nThe maximum number of loans you can offer is " + lenderLoanLimit + ". " +
-					"Your current loans are:\n" + customer.showLoansOffered(calendar.getTime());
+					"Your current loans are:\n" + customer.showLoansOffered(currentDate());
 		}
 		// check that the customer is not trying to lend more money than is permitted by the bank
-		double customerLending = customer.getTotalLoansOffered();
-		double customerLoanSizeLimit = lenderLoanSizeLimit * (customerLending + customer.getTotalFunds());
+		double customerLoanSizeLimit = lenderLoanSizeLimit * (customerLending + customerFunds);
 		if (customerLending + lendingAmount > customerLoanSizeLimit) {
 			userPrompts += "\nThe maximum amount of money that you can lend is " + customerLoanSizeLimit +
 					". The total value of loans you have already offered is " + customerLending + ".";
@@ -626,15 +1509,22 @@ public class NewBank {
 	}
 
 	// perform borrower eligibility checks
-	private String borrowerEligibilityChecks(Customer customer, double borrowingAmount) {
+	// pending is the customer's own request waiting on the marketplace when it is about to be matched (null otherwise);
+	// it is already counted in the customer's loans, so it is left out
+	private String borrowerEligibilityChecks(Customer customer, double borrowingAmount, Loan pending) {
 		String userPrompts = "";
+		int loansReceived = customer.numLoansReceived();
 		double customerBorrowing = customer.getTotalLoansReceived();
+		if (pending != null) {
+			loansReceived--;
+			customerBorrowing -= pending.getLoanValue();
+		}
 		double customerCollateral = Math.max(0, customer.getTotalFunds() - customerBorrowing);
 		double customerLoanLimit = customerCollateral * borrowerLoanSizeLimit;
 		// check that the customer is not currently lending money
 		if (customer.numLoansOffered() > 0) {
 			userPrompts += "\nYou are not eligible to borrow money while you are lending money:" +
-					customer.showLoansOffered(calendar.getTime());
+					customer.showLoansOffered(currentDate());
 		}
 		// check that the customer is not trying to borrow more money than is permitted by the bank
 		if ((customerBorrowing + borrowingAmount) > customerLoanLimit) {
@@ -642,36 +1532,36 @@ public class NewBank {
 					borrowerLoanSizeLimit + " times the non-loan balance held in your accounts).";
 		}
 		// check that the customer is not trying to take out more loans than is permitted by the bank
-		if (customer.numLoansReceived() == borrowerLoanLimit) {
+		if (loansReceived == borrowerLoanLimit) {
 			userPrompts += "\nThe maximum number of loans you can get is " + borrowerLoanLimit + ". " +
-					"Your current loans are:" + customer.showLoansReceived(calendar.getTime());
+					"Your current loans are:" + customer.showLoansReceived(currentDate());
 		}
 		return userPrompts;
 	}
 
 	// set up a loan offer and add it to the loans marketplace
-	private String offerLoan(CustomerID customerID, String[] requestParams) {
+	private String offerLoan(CustomerID customerID, CommandLine requestParams) {
 		Customer customer = customers.get(customerID.getKey());
 		// confirm that the parameters entered are valid, and provide prompts to the customer if not
 		String userPrompts = "";
 		double lendingAmount = 0;
 		int lendingDuration = 0;
 		boolean inputsValid = true;
-		if (requestParams.length == 4) {
+		if (requestParams.size() == 4) {
 			try {
-				lendingAmount = Double.parseDouble(requestParams[1]);
+				lendingAmount = Money.toPounds(requestParams.getAmount(1));
 				if (lendingAmount <= 0) {
 					// a lending amount must be positive
-					userPrompts += "\nLending amount '" + requestParams[1] + "' must be positive.";
+					userPrompts += "\nLending amount '" + requestParams.get(1) + "' must be positive.";
 					inputsValid = false;
 				}
 			} catch (NumberFormatException e) {
-				userPrompts += "\nLending amount '" + requestParams[1] + "' is not valid.";
+				userPrompts += "\nLending amount '" + requestParams.get(1) + "' is not valid.";
 				inputsValid = false;
 			}
-			Account lendingAccount = customer.getAccount(requestParams[2]);
+			Account lendingAccount = customer.getAccount(requestParams.get(2));
 			if (lendingAccount == null) {
-				userPrompts += "\nAccount to lend from '" + requestParams[2] + "' does not exist.";
+				userPrompts += "\nAccount to lend from '" + requestParams.get(2) + "' does not exist.";
 				inputsValid = false;
 			} else if(!lendingAccount.canLoan) {
 				userPrompts += "\n'" + lendingAccount.getName() + "' account cannot loan money to other customers.";
@@ -681,32 +1571,44 @@ public class NewBank {
 				inputsValid = false;
 			}
 			try {
-				lendingDuration = Integer.parseInt(requestParams[3]);
+				lendingDuration = requestParams.getInt(3);
 				if (lendingDuration <= 0) {
 					// a lending duration must be positive
-					userPrompts += "\nLending duration '" + requestParams[3] + "' is not valid.";
+					userPrompts += "\nLending duration '" + requestParams.get(3) + "' is not valid.";
 					inputsValid = false;
 				}
 			} catch (NumberFormatException e) {
-				userPrompts += "\nLending duration '" + requestParams[3] + "' is not valid.";
+				userPrompts += "\nLending duration '" + requestParams.get(3) + "' is not valid.";
 				inputsValid = false;
 			}
 			// perform lender eligibility checks and provide prompts to the customer if any criteria are not met
 			if (inputsValid) {
-				userPrompts += lenderEligibilityChecks(customer, lendingAmount, lendingAccount);
+				userPrompts += lenderEligibilityChecks(customer, lendingAmount, lendingAccount, null);
 			}
 			// set up the loan offer if all of the criteria are met
 			if (userPrompts.length() == 0) {
+				// the checks above are the ones LENDTO runs, so the customer can lend to the oldest waiting request
+				// with the same amount and duration straight away, provided its borrower is still eligible for it
+				// (otherwise the offer waits on the marketplace instead)
+				Loan match = matchingLoan(loanRequestMarketPlace, lendingAmount, lendingDuration, customer);
+				if (match != null && borrowerEligibilityChecks(match.getBorrower(), match.getLoanValue(), match).isEmpty()) {
+					// commit funds to the loan, which starts it
+					match.setLendingAccount(lendingAccount, currentDate());
+					watchDeadlines(match);
+					customer.offerLoan(match);
+					loanRequestMarketPlace.remove(match.getLoanID());
+					return "Your offer matched a loan request. The following loan has been started:\n" + match.displayDetails();
+				}
 				// set interest rate
 				double interestRate = getInterestRate(lendingDuration);
 				// create a new loan
-				Loan newLoanOffer = new Loan(lendingAmount, interestRate, lendingDuration, calendar.getTime());
+				Loan newLoanOffer = new Loan(lendingAmount, interestRate, lendingDuration);
 				// commit funds to the loan
-				newLoanOffer.setLendingAccount(lendingAccount, calendar.getTime());
+				newLoanOffer.setLendingAccount(lendingAccount, currentDate());
 				// add loan to customer account
 				customer.offerLoan(newLoanOffer);
 				// add loan offer to marketplace
-				loanOfferMarketPlace.put(newLoanOffer.getLoanID(), newLoanOffer);
+				loanOfferMarketPlace.put(newLoanOffer);
 				// confirm that loan offer has been set up
 				return "The following loan offer has been set up:\n" + newLoanOffer.displayDetails();
 			}
@@ -715,58 +1617,94 @@ public class NewBank {
 		return "Invalid entry. Try OFFERLOAN <amount to lend> <account to lend from> <duration (weeks)>";
 	}
 
+	// finds the loan waiting longest on a marketplace with the same amount and duration (and so the same interest rate)
+	// as a new entry on the other side; the customer it belongs to must be locked before it can be started,
+	// so if findCounterparty locked someone else the command is run again (nothing has been changed at this point)
+	private Loan matchingLoan(LoanMarketPlace marketPlace, double amount, int duration, Customer customer) {
+		Loan match = marketPlace.oldestWithTerms(amount, duration);
+		if (match == null) {
+			return null;
+		}
+		Customer owner = marketPlace == loanOfferMarketPlace ? match.getLender() : match.getBorrower();
+		if (owner == customer) {
+			return null;
+		}
+		if (!owner.isLockedByCurrentThread()) {
+			throw counterpartyChanged;
+		}
+		return match;
+	}
+
+	// adds a loan that has just started to the deadline wheel
+	private void watchDeadlines(Loan loan) {
+		deadlines.schedule(loan, loan.nextOverdueDay(Loan.epochDay(currentDate())));
+	}
+
 	// set up a loan request and add it to the loans marketplace
-	private String requestLoan(CustomerID customerID, String[] requestParams) {
+	private String requestLoan(CustomerID customerID, CommandLine requestParams) {
 		Customer customer = customers.get(customerID.getKey());
 		// confirm that the parameters entered are valid, and provide prompts to the customer if not
 		String userPrompts = "";
 		double borrowingAmount = 0;
 		int borrowingDuration = 0;
 		boolean inputsValid = true;
-		if (requestParams.length == 4) {
+		if (requestParams.size() == 4) {
 			try {
-				borrowingAmount = Double.parseDouble(requestParams[1]);
+				borrowingAmount = Money.toPounds(requestParams.getAmount(1));
 				if (borrowingAmount <= 0) {
 					// a borrowing amount must be positive
-					userPrompts += "\nBorrowing amount '" + requestParams[1] + "' must be positive.";
+					userPrompts += "\nBorrowing amount '" + requestParams.get(1) + "' must be positive.";
 					inputsValid = false;
 				}
 			} catch (NumberFormatException e) {
-				userPrompts += "\nBorrowing amount '" + requestParams[1] + "' is not valid.";
+				userPrompts += "\nBorrowing amount '" + requestParams.get(1) + "' is not valid.";
 				inputsValid = false;
 			}
-			Account borrowingAccount = customer.getAccount(requestParams[2]);
+			Account borrowingAccount = customer.getAccount(requestParams.get(2));
 			if (borrowingAccount == null) {
-				userPrompts += "\nAccount to receive loan '" + requestParams[2] + "' does not exist.";
+				userPrompts += "\nAccount to receive loan '" + requestParams.get(2) + "' does not exist.";
 				inputsValid = false;
 			}
 			try {
-				borrowingDuration = Integer.parseInt(requestParams[3]);
+				borrowingDuration = requestParams.getInt(3);
 				if (borrowingDuration <= 0) {
 					// a borrowing duration must be positive
-					userPrompts += "\nBorrowing duration '" + requestParams[3] + "' must be positive.";
+					userPrompts += "\nBorrowing duration '" + requestParams.get(3) + "' must be positive.";
 					inputsValid = false;
 				}
 			} catch (NumberFormatException e) {
-				userPrompts += "\nBorrowing duration '" + requestParams[3] + "' is not valid.";
+				userPrompts += "\nBorrowing duration '" + requestParams.get(3) + "' is not valid.";
 				inputsValid = false;
 			}
 			// perform borrower eligibility checks and provide prompts to the customer if any criteria are not met
 			if (inputsValid) {
-				userPrompts += borrowerEligibilityChecks(customer, borrowingAmount);
+				userPrompts += borrowerEligibilityChecks(customer, borrowingAmount, null);
 			}
 			// set up the loan request if all of the criteria are met
 			if (userPrompts.length() == 0) {
+				// the checks above are the ones BORROWFROM runs, so the customer can borrow from the oldest waiting offer
+				// with the same amount and duration straight away, provided its lender is still eligible to lend it
+				// (otherwise the request waits on the marketplace instead)
+				Loan match = matchingLoan(loanOfferMarketPlace, borrowingAmount, borrowingDuration, customer);
+				if (match != null && lenderEligibilityChecks(match.getLender(), match.getLoanValue(),
+						match.getLendingAccount(), match).isEmpty()) {
+					// accept loan and transfer funds to the borrowing account
+					match.setBorrowingAccount(borrowingAccount, currentDate());
+					watchDeadlines(match);
+					customer.receiveLoan(match);
+					loanOfferMarketPlace.remove(match.getLoanID());
+					return "Your request matched a loan offer. The following loan has been received:\n" + match.displayDetails();
+				}
 				// set interest rate
 				double interestRate = getInterestRate(borrowingDuration);
 				// create new loan
-				Loan newLoanRequest = new Loan(borrowingAmount, interestRate, borrowingDuration, calendar.getTime());
+				Loan newLoanRequest = new Loan(borrowingAmount, interestRate, borrowingDuration);
 				// link the loan request to the customer's account that has been nominated to receive the loan funds
-				newLoanRequest.setBorrowingAccount(borrowingAccount, calendar.getTime());
+				newLoanRequest.setBorrowingAccount(borrowingAccount, currentDate());
 				// add loan to customer account
 				customer.receiveLoan(newLoanRequest);
 				// add loan request to marketplace
-				loanRequestMarketPlace.put(newLoanRequest.getLoanID(), newLoanRequest);
+				loanRequestMarketPlace.put(newLoanRequest);
 				// confirm that the loan request has been set up
 				return "The following loan request has been set up:\n" + newLoanRequest.displayDetails();
 			}
@@ -775,43 +1713,134 @@ public class NewBank {
 		return "Invalid entry. Try REQUESTLOAN <amount to borrow> <account to receive funds> <duration (weeks)>";
 	}
 
-	// shows all loans available at the bank
-	private String showLoans() {
-		String loanList = "LOAN OFFERS:";
-		for (Loan loan : loanOfferMarketPlace.values()) {
-			loanList += "\n" + loan.displayDetails();
+	// shows the loans available at the bank, a page at a time
+	// SHOWLOANS [OFFERS|REQUESTS] [MINAMOUNT <amount>] [MAXAMOUNT <amount>] [MINRATE <%>] [MAXRATE <%>]
+	//           [MINDURATION <weeks>] [MAXDURATION <weeks>] [SORTBY AMOUNT|RATE|DURATION] [LIMIT <n>] [AFTER <cursor>]
+	private void showLoans(CommandLine requestParams, StringBuilder response) {
+		String usage = "Invalid entry. Try SHOWLOANS [OFFERS|REQUESTS] [MINAMOUNT <amount>] [MAXAMOUNT <amount>] " +
+				"[MINRATE <%>] [MAXRATE <%>] [MINDURATION <weeks>] [MAXDURATION <weeks>] " +
+				"[SORTBY AMOUNT|RATE|DURATION] [LIMIT <1-" + maxLoanPageSize + ">] [AFTER <cursor>]";
+		boolean showOffers = true;
+		boolean showRequests = true;
+		int i = 1;
+		if (requestParams.tokenEquals(1, "OFFERS")) {
+			showRequests = false;
+			i++;
+		} else if (requestParams.tokenEquals(1, "REQUESTS")) {
+			showOffers = false;
+			i++;
 		}
-		loanList += "\nLOAN REQUESTS:";
-		for (Loan loan : loanRequestMarketPlace.values()) {
-			loanList += "\n" + loan.displayDetails();
+		LoanMarketPlace.Filter filter = new LoanMarketPlace.Filter();
+		LoanMarketPlace.SortKey sortKey = LoanMarketPlace.SortKey.AMOUNT;
+		int limit = defaultLoanPageSize;
+		String cursor = null;
+		StringBuilder options = new StringBuilder(); // repeated in the command that shows the next page
+		try {
+			for (; i < requestParams.size(); i += 2) {
+				if (i + 1 == requestParams.size()) {
+					response.append(usage);
+					return;
+				}
+				String option = requestParams.get(i);
+				switch (option) {
+					case "MINAMOUNT":
+						filter.minAmount = Money.toPounds(requestParams.getAmount(i + 1));
+						break;
+					case "MAXAMOUNT":
+						filter.maxAmount = Money.toPounds(requestParams.getAmount(i + 1));
+						break;
+					case "MINRATE":
+						filter.minRate = Money.toPounds(requestParams.getAmount(i + 1)) / 100;
+						break;
+					case "MAXRATE":
+						filter.maxRate = Money.toPounds(requestParams.getAmount(i + 1)) / 100;
+						break;
+					case "MINDURATION":
+						filter.minDuration = requestParams.getInt(i + 1);
+						break;
+					case "MAXDURATION":
+						filter.maxDuration = requestParams.getInt(i + 1);
+						break;
+					case "SORTBY":
+						sortKey = LoanMarketPlace.SortKey.valueOf(requestParams.get(i + 1));
+						break;
+					case "LIMIT":
+						limit = requestParams.getInt(i + 1);
+						if (limit <= 0 || limit > maxLoanPageSize) {
+							response.append(usage);
+							return;
+						}
+						break;
+					case "AFTER":
+						cursor = requestParams.get(i + 1);
+						continue;
+					default:
+						response.append(usage);
+						return;
+				}
+				options.append(' ').append(option).append(' ').append(requestParams.get(i + 1));
+			}
+		} catch (IllegalArgumentException e) {
+			// a badly formatted number or an unknown sort order
+			response.append(usage);
+			return;
+		}
+		if (cursor != null && showOffers && showRequests) {
+			response.append("Invalid entry. Choose OFFERS or REQUESTS to continue a listing from a cursor.");
+			return;
+		}
+		try {
+			if (showOffers) {
+				response.append("LOAN OFFERS:");
+				String next = loanOfferMarketPlace.appendPage(response, filter, sortKey, cursor, limit);
+				appendNextPage(response, "OFFERS", options, next);
+			}
+			if (showRequests) {
+				if (showOffers) {
+					response.append('\n');
+				}
+				response.append("LOAN REQUESTS:");
+				String next = loanRequestMarketPlace.appendPage(response, filter, sortKey, cursor, limit);
+				appendNextPage(response, "REQUESTS", options, next);
+			}
+		} catch (NumberFormatException e) {
+			response.setLength(response.length() - "LOAN OFFERS:".length()); // both headings are the same length
+			response.append("Invalid entry. '").append(cursor).append("' is not a valid cursor.");
+		}
+	}
+
+	// tells the customer how to see the next page of a listing (if there is one)
+	private static void appendNextPage(StringBuilder response, String side, StringBuilder options, String cursor) {
+		if (cursor != null) {
+			response.append("\nMore loans: SHOWLOANS ").append(side).append(options).append(" AFTER ").append(cursor);
 		}
-		return loanList;
 	}
 
 	// allows a customer to fulfill a loan request listed on the marketplace
-	private String lendTo(CustomerID customerID, String[] requestParams) {
+	private String lendTo(CustomerID customerID, CommandLine requestParams) {
 		Customer customer = customers.get(customerID.getKey());
 		// confirm that the input parameters are valid, and provide prompts to the user if not
 		String userPrompts = "";
 		boolean inputsValid = true;
-		if (requestParams.length == 3) {
-			if (!loanRequestMarketPlace.containsKey(requestParams[1])) {
-				userPrompts += "\nLoan ID '" + requestParams[1] + "' is not a valid loan to lend to.";
+		if (requestParams.size() == 3) {
+			if (!loanRequestMarketPlace.containsKey(requestParams.get(1))) {
+				userPrompts += "\nLoan ID '" + requestParams.get(1) + "' is not a valid loan to lend to.";
 				inputsValid = false;
 			}
-			Account lendingAccount = customer.getAccount(requestParams[2]);
+			Account lendingAccount = customer.getAccount(requestParams.get(2));
 			if (lendingAccount == null) {
-				userPrompts += "\nAccount to lend money from '" + requestParams[2] + "' does not exist.";
+				userPrompts += "\nAccount to lend money from '" + requestParams.get(2) + "' does not exist.";
 				inputsValid = false;
 			}
 			if (inputsValid) {
-				Loan loan = loanRequestMarketPlace.get(requestParams[1]);
+				Loan loan = loanRequestMarketPlace.get(requestParams.get(1));
 				double lendingAmount = loan.getLoanValue();
 				// perform lender eligibility checks and provide prompts to the customer if any criteria are not met
-				userPrompts += lenderEligibilityChecks(customer, lendingAmount, lendingAccount);
+				userPrompts += lenderEligibilityChecks(customer, lendingAmount, lendingAccount, null);
 				if (userPrompts.length() == 0) {
 					// commit funds to the loan
-					loan.setLendingAccount(lendingAccount, calendar.getTime());
+					loan.setLendingAccount(lendingAccount, currentDate());
+					watchDeadlines(loan);
 					// add loan to customer account
 					customer.offerLoan(loan);
 					// remove loan from marketplace
@@ -828,30 +1857,31 @@ public class NewBank {
 	}
 
 	// allows a customer to take out a loan offered on the marketplace
-	private String borrowFrom(CustomerID customerID, String[] requestParams) {
+	private String borrowFrom(CustomerID customerID, CommandLine requestParams) {
 		Customer customer = customers.get(customerID.getKey());
 		// confirm that the parameters are valid, and provide prompts to the user if not
 		String userPrompts = "";
 		boolean inputsValid = true;
-		if (requestParams.length == 3) {
-			if (!loanOfferMarketPlace.containsKey(requestParams[1])) {
-				userPrompts += "\nLoan ID '" + requestParams[1] + "' is not valid loan to borrow from.";
+		if (requestParams.size() == 3) {
+			if (!loanOfferMarketPlace.containsKey(requestParams.get(1))) {
+				userPrompts += "\nLoan ID '" + requestParams.get(1) + "' is not valid loan to borrow from.";
 				inputsValid = false;
 			}
-			Account borrowingAccount = customer.getAccount(requestParams[2]);
+			Account borrowingAccount = customer.getAccount(requestParams.get(2));
 			if (borrowingAccount == null) {
-				userPrompts += "\nAccount to pay loan into '" + requestParams[2] + "' does not exist.";
+				userPrompts += "\nAccount to pay loan into '" + requestParams.get(2) + "' does not exist.";
 				inputsValid = false;
 			}
 			if (inputsValid) {
-				Loan loan = loanOfferMarketPlace.get(requestParams[1]);
+				Loan loan = loanOfferMarketPlace.get(requestParams.get(1));
 				double borrowingAmount = loan.getLoanValue();
 				// perform borrower eligibility checks and provide prompts to the customer if any criteria are not met
-				userPrompts += borrowerEligibilityChecks(customer, borrowingAmount);
+				userPrompts += borrowerEligibilityChecks(customer, borrowingAmount, null);
 				// grant access to the loan if all of the criteria are met
 				if (userPrompts.length() == 0) {
 					// accept loan and transfer funds to the borrowing account
-					loan.setBorrowingAccount(borrowingAccount, calendar.getTime());
+					loan.setBorrowingAccount(borrowingAccount, currentDate());
+					watchDeadlines(loan);
 					// add loan to customer account
 					customer.receiveLoan(loan);
 					// remove loan from marketplace
@@ -868,31 +1898,31 @@ public class NewBank {
 	}
 
 	// allows a customer to make a repayment on their loan
-	private String loanRepayment(CustomerID customerID, String[] requestParams) {
+	private String loanRepayment(CustomerID customerID, CommandLine requestParams) {
 		Customer customer = customers.get(customerID.getKey());
 		// confirm that the parameters entered are valid, and provide prompts to the user if not
 		String userPrompts = "";
 		double repaymentAmount = 0;
 		boolean inputsValid = true;
-		if (requestParams.length == 4) {
-			Loan loanToRepay = customer.getBorrowedLoan(requestParams[1]);
+		if (requestParams.size() == 4) {
+			Loan loanToRepay = customer.getBorrowedLoan(requestParams.get(1));
 			if (loanToRepay == null) {
-				userPrompts += "\nLoan ID '" + requestParams[1] + "' is not valid.";
+				userPrompts += "\nLoan ID '" + requestParams.get(1) + "' is not valid.";
 				inputsValid = false;
 			}
 			try {
-				repaymentAmount = Double.parseDouble(requestParams[2]);
+				repaymentAmount = Money.toPounds(requestParams.getAmount(2));
 				if (repaymentAmount <= 0) {
-					userPrompts += "\nRepayment amount '" + requestParams[2] + "' must be positive.";
+					userPrompts += "\nRepayment amount '" + requestParams.get(2) + "' must be positive.";
 					inputsValid = false;
 				}
 			} catch (NumberFormatException e) {
-				userPrompts += "\nRepayment amount '" + requestParams[2] + "' is not valid.";
+				userPrompts += "\nRepayment amount '" + requestParams.get(2) + "' is not valid.";
 				inputsValid = false;
 			}
-			Account repaymentAccount = customer.getAccount(requestParams[3]);
+			Account repaymentAccount = customer.getAccount(requestParams.get(3));
 			if (repaymentAccount == null) {
-				userPrompts += "\nAccount to repay from '" + requestParams[3] + "' does not exist.";
+				userPrompts += "\nAccount to repay from '" + requestParams.get(3) + "' does not exist.";
 				inputsValid = false;
 			} else if(!repaymentAccount.canPay) {
 				userPrompts += "\n'" + repaymentAccount.getName() + "' account cannot be used to perform loan repayments.";
@@ -905,15 +1935,16 @@ public class NewBank {
 					inputsValid = false;
 				}
 				// check that the repayment does not exceed the remaining balance on the loan
-				double outstandingBalance = loanToRepay.getRepaymentAmount(calendar.getTime());
+				Date date = requestParams.getDate();
+				double outstandingBalance = loanToRepay.getRepaymentAmount(date);
 				if (repaymentAmount > outstandingBalance) {
 					userPrompts += "\nRepayment exceeds outstanding balance on loan: " + outstandingBalance;
 					inputsValid = false;
 				}
 				if (inputsValid) {
 					// make the repayment
-					loanToRepay.makeRepayment(calendar.getTime(), repaymentAmount, repaymentAccount);
-					outstandingBalance = loanToRepay.getRepaymentAmount(calendar.getTime());
+					loanToRepay.makeRepayment(date, repaymentAmount, repaymentAccount);
+					outstandingBalance = loanToRepay.getRepaymentAmount(date);
 					return "Repayment of " + repaymentAmount + " made to " + loanToRepay.getLoanID() + ". " +
 							"Outstanding balance is now " + outstandingBalance;
 				}
@@ -925,11 +1956,11 @@ public class NewBank {
 	}
 
 	// removes a loan from a customer's account provided that there is no money to be repaid
-	private String removeLoan(CustomerID customerID, String[] requestParams) {
+	private String removeLoan(CustomerID customerID, CommandLine requestParams) {
 		Customer customer = customers.get(customerID.getKey());
 		// confirm that the input parameters are valid and provide prompts to the user if not
-		if (requestParams.length == 2) {
-			String loanID = requestParams[1];
+		if (requestParams.size() == 2) {
+			String loanID = requestParams.get(1);
 			if (customer.getBorrowedLoan(loanID) != null) {
 				Loan loan = customer.getBorrowedLoan(loanID);
 				// confirm that there is no money to be repaid on the loan
@@ -967,16 +1998,25 @@ public class NewBank {
 	}
 
 	// skips ahead by a specified number of days to a future date in the bank's calendar
-	private String timeTravel(String[] requestParams) {
+	private String timeTravel(CommandLine requestParams) {
 		// confirm that the parameter entered is valid (must be a positive integer)
-		if(requestParams.length == 2 && isNumeric(requestParams[1])) {
+		if(requestParams.size() == 2 && requestParams.isNumber(1)) {
 			try {
-				int days = Integer.parseInt(requestParams[1]);
+				int days = requestParams.getInt(1);
 				if(days >= 0) {
 					// update the calendar date and provide confirmation of time travel
-					Date departureDate = calendar.getTime();
-					calendar.add(calendar.DATE, days);
-					Date arrivalDate = calendar.getTime();
+					Date departureDate;
+					Date arrivalDate;
+					synchronized (calendar) {
+						departureDate = calendar.getTime();
+						calendar.add(Calendar.DATE, days);
+						arrivalDate = calendar.getTime();
+					}
+					// interest is brought up to the new date once this command has released its locks
+					ScheduledExecutorService scheduler = endOfDayScheduler;
+					if(scheduler != null && days > 0) {
+						scheduler.execute(this::runEndOfDay);
+					}
 					return "Travelled forward " + days + " days from " + departureDate + " to " + arrivalDate;
 
 				} else {
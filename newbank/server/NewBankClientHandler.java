@@ -1,34 +1,50 @@
 package newbank.server;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.PushbackInputStream;
 import java.net.Socket;
-import java.util.Locale;
-
-public class NewBankClientHandler extends Thread {
-
-    private final NewBank bank;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// output is buffered and only flushed once a response is complete and no further request is already waiting, so
+// a response (or a run of responses to pipelined requests) leaves in one write rather than one per line or chunk
+public class NewBankClientHandler implements Runnable {
+
+    private static final int CHUNK_SIZE = 8192;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    // writes notices pushed by the bank, so that the bank's thread never waits on a client's socket; a client that has
+    // stopped reading only holds up the thread writing its own notices
+    private static final ExecutorService NOTICE_WRITERS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "NewBank notice writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final PushbackInputStream input; // the first byte shows whether the client speaks text or binary
+    private final OutputStream output; // buffered - see flushIfIdle
     private final BufferedReader in;
     private final PrintWriter out;
-
-    private boolean clientHasAccount(String userInput) {
-        return userInput.equals("y");
-    }
-
-    private boolean yesNoUserInput(String userInput) {
-        return userInput.equals("y") || userInput.equals("n");
-    }
-
-    private boolean passwordFollowsRules(String password) {
-        return password.length() > 7 && password.length() < 21;
-    }
+    private final ClientSession session;
+    private final char[] chunk = new char[CHUNK_SIZE]; // for copying responses out of the session's buffer
+    private final StringBuilder line = new StringBuilder(); // the line being read
+    private final Queue<Runnable> pendingNotices = new ConcurrentLinkedQueue<>(); // writes of notices pushed by the bank
+    private final AtomicBoolean writingNotices = new AtomicBoolean(); // whether a notice writer is draining pendingNotices
 
     public NewBankClientHandler(Socket s) throws IOException {
-        bank = NewBank.getBank();
-        in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-        out = new PrintWriter(s.getOutputStream(), true);
+        session = new ClientSession(NewBank.getBank(), this::push);
+        input = new PushbackInputStream(s.getInputStream());
+        output = new BufferedOutputStream(s.getOutputStream(), OUTPUT_BUFFER_SIZE);
+        in = new BufferedReader(new InputStreamReader(input));
+        out = new PrintWriter(new OutputStreamWriter(output), false);
     }
 
     private void closeStreams() {
@@ -41,119 +57,148 @@ public class NewBankClientHandler extends Thread {
         }
     }
 
-    private boolean askDoesClientHaveAccount() {
-        //check if user has account
-        out.println("Do you have an account with us? Please enter Y or N");
-        String userInput = "";
-        try {
-            userInput = in.readLine().toLowerCase();
-            while (!yesNoUserInput(userInput)) {
-                //incorrect response given - wait for a correct response before continuing
-                out.println("Please enter Y or N");
-                userInput = in.readLine().toLowerCase();
+    // writes a response a piece at a time, so a long listing is never copied into one large String,
+    // then ends the line (the response is sent by flushIfIdle)
+    // holds the writer's lock throughout so that a notice pushed by another thread cannot land in the middle
+    private void send(CharSequence response) {
+        synchronized (out) {
+            if (response instanceof String) {
+                out.println((String) response);
+                return;
             }
-
-        } catch (IOException e) {
-            e.printStackTrace();
-            out.println("We encountered an error. Please try again later.");
-            closeStreams();
+            StringBuilder buffer = (StringBuilder) response;
+            for (int start = 0; start < buffer.length(); start += CHUNK_SIZE) {
+                int end = Math.min(start + CHUNK_SIZE, buffer.length());
+                buffer.getChars(start, end, chunk, 0);
+                out.write(chunk, 0, end - start);
+            }
+            out.println();
         }
-        return clientHasAccount(userInput);
     }
 
-    private CustomerID loginUser() {
-        String userName = "";
-        String password = "";
-        try {
-            // ask for user name
-            out.println("Enter Username");
-            userName = in.readLine();
-            // ask for password
-            out.println("Enter Password");
-            password = in.readLine();
-            out.println("Checking Details...");
-            // authenticate user and get customer ID token from bank for use in subsequent requests
-        } catch (IOException e) {
-            e.printStackTrace();
-            out.println("We encountered an error. Please try again later.");
-            closeStreams();
+    // sends a message pushed by the bank (called on the bank's thread, between responses)
+    private void push(String notice) {
+        queueNotice(() -> {
+            synchronized (out) {
+                out.println(notice);
+                out.flush();
+            }
+        });
+    }
+
+    // hands a notice to a notice writer; at most one writer runs for a connection at a time, so notices keep their order
+    private void queueNotice(Runnable write) {
+        pendingNotices.add(write);
+        if (writingNotices.compareAndSet(false, true)) {
+            NOTICE_WRITERS.execute(this::writeNotices);
         }
-        CustomerID id = bank.checkLogInDetails(userName, password);
-        return id;
     }
 
-    private void processUserRequests(CustomerID customer) {
-        // keep getting requests from the client and processing them
-        try {
-            while (true) {
-                String request = in.readLine();
-                System.out.println("Request from " + customer.getKey());
-                String response = bank.processRequest(customer, request);
-                if (response.equals("LOGOUT")) {
-                    out.println("Logging out...");
-                    break;
+    private void writeNotices() {
+        do {
+            Runnable write;
+            while ((write = pendingNotices.poll()) != null) {
+                write.run();
+            }
+            writingNotices.set(false);
+            // a notice queued after the last poll but before the flag was cleared would otherwise be left behind
+        } while (!pendingNotices.isEmpty() && writingNotices.compareAndSet(false, true));
+    }
+
+    // reads a line ending in \n (or \r\n) like BufferedReader.readLine, except that a line longer than
+    // ClientSession.MAX_LINE_LENGTH drops the connection rather than being read into memory however long it is
+    private String readLine() throws IOException {
+        line.setLength(0);
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                    line.setLength(line.length() - 1);
                 }
-                out.println(response);
+                return line.toString();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            out.println("We encountered an error. Please try again later.");
-            closeStreams();
+            if (line.length() == ClientSession.MAX_LINE_LENGTH) {
+                throw new IOException("Line longer than " + ClientSession.MAX_LINE_LENGTH + " characters");
+            }
+            line.append((char) c);
         }
+        return line.length() > 0 ? line.toString() : null;
     }
 
-    private CustomerID createAccount() {
-        String userName = "";
-        String password = "";
-        try {
-            // ask for user name
-            out.println("Enter Username to create account");
-            userName = in.readLine();
-            //make sure you aren't going to overwrite a previous customer
-            while (!bank.usernameIsAvailable(userName)) {
-                out.println("Username already taken. Please choose a different username");
-                userName = in.readLine();
+    // sends what has been written unless the client has already sent more input, in which case the responses to
+    // that input are written first and everything goes out together
+    private void flushIfIdle() throws IOException {
+        if (!in.ready()) {
+            synchronized (out) {
+                out.flush();
             }
-            // ask for password
-            out.println("Enter Password of length between 8 - 20 characters");
-            password = in.readLine();
-            while (!passwordFollowsRules(password)) {
-                out.println("Password could not be set. Please enter a password of length between 8 - 20 characters.");
-                password = in.readLine();
+        }
+    }
+
+    // writes a binary frame; flush is false while more requests are waiting (see flushIfIdle)
+    private void sendFrame(byte[] body, boolean flush) {
+        synchronized (out) {
+            try {
+                BinaryProtocol.writeFrame(output, body);
+                if (flush) {
+                    output.flush();
+                }
+            } catch (IOException e) {
+                // the client has gone - the session is closed when the next read fails
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            out.println("We encountered an error. Please try again later.");
-            closeStreams();
         }
-        return bank.createNewCustomer(userName, password);
     }
 
-    private CustomerID createUserAndAccount() {
-        CustomerID user = createAccount();
-        return user;
+    // sends a notice pushed by the bank (called on the bank's thread)
+    private void pushFrame(byte[] body) {
+        queueNotice(() -> sendFrame(body, true));
+    }
+
+    // serves a client that has switched to the binary protocol, until it disconnects
+    private void runBinary() throws IOException {
+        if (input.read() != BinaryProtocol.VERSION) {
+            return;
+        }
+        BinarySession binary = new BinarySession(NewBank.getBank(), this::pushFrame);
+        try {
+            sendFrame(binary.start(), true);
+            byte[] request;
+            while ((request = BinaryProtocol.readFrame(input)) != null) {
+                sendFrame(binary.handleFrame(request), input.available() == 0);
+            }
+        } catch (IOException e) {
+            e.printStackTrace(); // a broken frame - there is no way to reply, so the connection is dropped
+        } finally {
+            binary.close();
+        }
     }
 
     public void run() {
         try {
-            while(true) { // Loop when the client breaks out of the processUserRequests method, resetting the run() process
-                boolean accountToLogIn = askDoesClientHaveAccount();
-                CustomerID customer = null;
-                while (customer == null) {
-                if (accountToLogIn) {
-                    customer = loginUser();
-                } else {
-                    customer = createUserAndAccount();
-                }
-                if (customer == null) {
-                    out.println("Failed");
-                }
+            out.println(session.start());
+            out.flush();
+            int first = input.read();
+            if (first == BinaryProtocol.MAGIC) {
+                runBinary();
+                return;
+            }
+            if (first >= 0) {
+                input.unread(first);
+            }
+            // keep getting input from the client and passing it through the login / request conversation
+            while (!session.isClosed()) {
+                CharSequence response = session.handleLine(readLine());
+                if (response != null) {
+                    send(response);
                 }
-                // if the user is authenticated then get requests from the user and process them
-                out.println("Success! What do you want to do next?");
-                processUserRequests(customer);
-            }  
+                flushIfIdle();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            out.println("We encountered an error. Please try again later.");
+            out.flush();
         } finally {
+            session.close();
             closeStreams();
         }
     }
@@ -0,0 +1,415 @@
+package newbank.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// non-blocking alternative to NewBankServer: a single selector thread accepts connections and frames
+// incoming bytes into lines, and a small pool of worker threads runs each connection's ClientSession
+// (or, for a client that switches to the binary protocol, frames bytes into BinaryProtocol frames for a BinarySession)
+public class NewBankNioServer extends Thread {
+
+	private static final int READ_BUFFER_SIZE = 4096;
+	private static final int OUTPUT_CHUNK_SIZE = 8192; // long responses are encoded into buffers of this size
+	private static final int MAX_GATHERED_BUFFERS = 64; // buffers passed to the socket in one write
+	private static final Charset charset = Charset.defaultCharset();
+	private static final String lineSeparator = System.lineSeparator();
+
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final ExecutorService workers;
+	private final Queue<Connection> writesReady; // connections with output queued by a worker thread
+
+	public NewBankNioServer(int port, int workerThreads) throws IOException {
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		workers = Executors.newFixedThreadPool(workerThreads);
+		writesReady = new ConcurrentLinkedQueue<>();
+	}
+
+	public void run() {
+		System.out.println("New Bank NIO Server listening on " + server.socket().getLocalPort());
+		try {
+			while (true) {
+				selector.select();
+				// output is queued from worker threads, but interest ops are only changed on this thread
+				Connection ready;
+				while ((ready = writesReady.poll()) != null) {
+					if (ready.key.isValid()) {
+						ready.key.interestOps(ready.key.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						}
+						if (key.isValid() && key.isReadable()) {
+							((Connection) key.attachment()).read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							((Connection) key.attachment()).write();
+						}
+					} catch (IOException e) {
+						Object attachment = key.attachment();
+						if (attachment instanceof Connection) {
+							((Connection) attachment).close();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			workers.shutdownNow();
+			try {
+				selector.close();
+				server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		Connection connection = new Connection(channel, key);
+		key.attach(connection);
+		connection.send(connection.session.start());
+	}
+
+	// per-connection buffers and conversation state
+	private class Connection implements Runnable {
+
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private final ClientSession session;
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+		private final ArrayDeque<String> pendingLines = new ArrayDeque<>(); // guarded by this
+		private final ArrayDeque<byte[]> pendingFrames = new ArrayDeque<>(); // binary protocol requests - guarded by this
+		private final ArrayDeque<String> pendingNotices = new ArrayDeque<>(); // pushed by the bank - guarded by this
+		private final Queue<ByteBuffer> pendingOutput = new ConcurrentLinkedQueue<>();
+		private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHERED_BUFFERS]; // only used on the selector thread
+		private boolean scheduled = false; // guarded by this - true while a worker is processing our lines
+		private boolean closed = false; // guarded by this - the channel is closed, and the worker then closes the sessions
+		private volatile boolean closeAfterWrite = false;
+		// protocol state, only used on the selector thread
+		private boolean firstByteRead = false;
+		private boolean awaitingVersion = false;
+		private BinarySession binary; // set once the client has switched to the binary protocol
+		private boolean frameLengthRead = false; // whether the length of the frame being read is complete
+		private int frameLength = 0; // the frame's length, or the part of it read so far
+		private int frameLengthShift = 0;
+		// only used by the thread running this connection's session (see send)
+		private final CharsetEncoder encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		private Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+			this.session = new ClientSession(NewBank.getBank(), this::queueNotice);
+		}
+
+		// called on the selector thread when the channel has bytes available
+		private void read() throws IOException {
+			int count = channel.read(readBuffer);
+			if (count < 0) {
+				close();
+				return;
+			}
+			readBuffer.flip();
+			if (!firstByteRead && readBuffer.hasRemaining()) {
+				firstByteRead = true;
+				if (readBuffer.get(0) == BinaryProtocol.MAGIC) {
+					readBuffer.get();
+					awaitingVersion = true;
+				}
+			}
+			if (awaitingVersion && readBuffer.hasRemaining()) {
+				awaitingVersion = false;
+				if (readBuffer.get() != BinaryProtocol.VERSION) {
+					close();
+					return;
+				}
+				binary = new BinarySession(NewBank.getBank(), this::sendFrame);
+				sendFrame(binary.start());
+			}
+			if (binary != null) {
+				readFrames();
+				return;
+			}
+			while (readBuffer.hasRemaining()) {
+				byte b = readBuffer.get();
+				if (b == '\n') {
+					byte[] bytes = partialLine.toByteArray();
+					int length = bytes.length;
+					if (length > 0 && bytes[length - 1] == '\r') {
+						length--;
+					}
+					partialLine.reset();
+					queueLine(new String(bytes, 0, length, charset));
+				} else if (partialLine.size() < ClientSession.MAX_LINE_LENGTH) {
+					partialLine.write(b);
+				} else {
+					close();
+					return;
+				}
+			}
+			readBuffer.clear();
+		}
+
+		// splits the bytes read into binary protocol frames: a varint length, then the frame's body
+		private void readFrames() throws IOException {
+			while (readBuffer.hasRemaining()) {
+				byte b = readBuffer.get();
+				if (frameLengthRead) {
+					partialLine.write(b);
+				} else {
+					frameLength |= (b & 0x7f) << frameLengthShift;
+					frameLengthShift += 7;
+					if ((b & 0x80) != 0) {
+						if (frameLengthShift > 28) {
+							throw new IOException("Frame length too long");
+						}
+						continue;
+					}
+					if (frameLength < 0 || frameLength > BinaryProtocol.MAX_FRAME_LENGTH) {
+						throw new IOException("Frame of " + frameLength + " bytes is too long");
+					}
+					frameLengthRead = true;
+				}
+				if (frameLengthRead && partialLine.size() == frameLength) {
+					byte[] frame = partialLine.toByteArray();
+					partialLine.reset();
+					frameLengthRead = false;
+					frameLength = 0;
+					frameLengthShift = 0;
+					queueFrame(frame);
+				}
+			}
+			readBuffer.clear();
+		}
+
+		private void queueFrame(byte[] frame) {
+			synchronized (this) {
+				pendingFrames.add(frame);
+				if (scheduled) {
+					return;
+				}
+				scheduled = true;
+			}
+			workers.execute(this);
+		}
+
+		// frames need no encoding, so they are queued straight away from whichever thread sends them
+		private void sendFrame(byte[] body) {
+			pendingOutput.add(ByteBuffer.wrap(BinaryProtocol.frame(body)));
+			writesReady.add(this);
+			selector.wakeup();
+		}
+
+		// complete lines are handed to the worker pool, at most one worker per connection at a time
+		private void queueLine(String line) {
+			synchronized (this) {
+				pendingLines.add(line);
+				if (scheduled) {
+					return;
+				}
+				scheduled = true;
+			}
+			workers.execute(this);
+		}
+
+		// notices are sent by the connection's worker too, as only that thread may use the encoder
+		private void queueNotice(String notice) {
+			synchronized (this) {
+				pendingNotices.add(notice);
+				if (scheduled) {
+					return;
+				}
+				scheduled = true;
+			}
+			workers.execute(this);
+		}
+
+		// runs on a worker thread - sends any notices, then processes lines (or binary frames) in the order they were received
+		// once the connection is closed and everything received before that has been processed, the worker closes the
+		// sessions (they are not thread-safe, so only the worker ever uses them) and the connection is never scheduled again
+		public void run() {
+			try {
+				while (true) {
+					String notice;
+					String line;
+					byte[] frame;
+					synchronized (this) {
+						notice = pendingNotices.poll();
+						line = notice == null ? pendingLines.poll() : null;
+						frame = notice == null && line == null ? pendingFrames.poll() : null;
+						if (notice == null && line == null && frame == null) {
+							if (closed) {
+								break;
+							}
+							scheduled = false;
+							return;
+						}
+					}
+					if (frame != null) {
+						sendFrame(binary.handleFrame(frame));
+						continue;
+					}
+					if (session.isClosed()) {
+						continue;
+					}
+					if (notice != null) {
+						send(notice);
+						continue;
+					}
+					CharSequence response = session.handleLine(line);
+					if (response != null) {
+						send(response);
+					}
+					if (session.isClosed()) {
+						closeAfterWrite = true;
+					}
+				}
+			} catch (RuntimeException e) {
+				e.printStackTrace(); // a line or frame the session could not handle - the connection is dropped
+				closeChannel();
+				synchronized (this) {
+					closed = true;
+					pendingNotices.clear();
+					pendingLines.clear();
+					pendingFrames.clear();
+				}
+			}
+			session.close();
+			if (binary != null) {
+				binary.close();
+			}
+		}
+
+		// encodes a response straight from the session's buffer into a series of byte buffers for the selector thread
+		// (so a long listing is never copied into one large String or byte array)
+		private void send(CharSequence response) {
+			encoder.reset();
+			int expectedSize = (int) ((response.length() + lineSeparator.length()) * encoder.maxBytesPerChar());
+			ByteBuffer chunk = ByteBuffer.allocate(Math.min(expectedSize, OUTPUT_CHUNK_SIZE));
+			chunk = encode(CharBuffer.wrap(response), chunk, false);
+			chunk = encode(CharBuffer.wrap(lineSeparator), chunk, true);
+			while (encoder.flush(chunk).isOverflow()) {
+				queue(chunk);
+				chunk = ByteBuffer.allocate(OUTPUT_CHUNK_SIZE);
+			}
+			queue(chunk);
+			writesReady.add(this);
+			selector.wakeup();
+		}
+
+		// encodes all of the characters, queueing each buffer as it fills; returns the last, partly filled, buffer
+		private ByteBuffer encode(CharBuffer characters, ByteBuffer chunk, boolean endOfInput) {
+			while (encoder.encode(characters, chunk, endOfInput).isOverflow()) {
+				queue(chunk);
+				chunk = ByteBuffer.allocate(OUTPUT_CHUNK_SIZE);
+			}
+			return chunk;
+		}
+
+		private void queue(ByteBuffer chunk) {
+			chunk.flip();
+			if (chunk.hasRemaining()) {
+				pendingOutput.add(chunk);
+			}
+		}
+
+		// called on the selector thread when the channel can accept more bytes
+		// every buffer queued so far (the chunks of one response, or the responses to several pipelined requests)
+		// goes to the socket in one gathering write
+		private void write() throws IOException {
+			while (true) {
+				int count = 0;
+				for (ByteBuffer buffer : pendingOutput) {
+					if (count == gather.length) {
+						break;
+					}
+					gather[count++] = buffer;
+				}
+				if (count == 0) {
+					break;
+				}
+				channel.write(gather, 0, count);
+				boolean full = gather[count - 1].hasRemaining();
+				Arrays.fill(gather, 0, count, null);
+				ByteBuffer head;
+				while ((head = pendingOutput.peek()) != null && !head.hasRemaining()) {
+					pendingOutput.poll();
+				}
+				if (full) {
+					return; // socket send buffer is full - wait for the next OP_WRITE
+				}
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			if (closeAfterWrite) {
+				close();
+			}
+		}
+
+		// called on the selector thread; the sessions are closed by the worker, after any lines already received
+		private void close() {
+			closeChannel();
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				if (scheduled) {
+					return;
+				}
+				scheduled = true;
+			}
+			workers.execute(this);
+		}
+
+		private void closeChannel() {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
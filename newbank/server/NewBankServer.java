@@ -1,30 +1,44 @@
 package newbank.server;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class NewBankServer extends Thread{
-	
+
 	private ServerSocket server;
-	
-	public NewBankServer(int port) throws IOException {
+	private ExecutorService sessions; // runs one client handler per connected client
+
+	public NewBankServer(int port, ExecutorService sessions) throws IOException {
 		server = new ServerSocket(port);
+		this.sessions = sessions;
+	}
+
+	public NewBankServer(int port) throws IOException {
+		this(port, Executors.newCachedThreadPool());
 	}
-	
+
 	public void run() {
-		// starts up a new client handler thread to receive incoming connections and process requests
+		// hands each incoming connection to a client handler to receive and process requests
 		System.out.println("New Bank Server listening on " + server.getLocalPort());
 		try {
 			while(true) {
 				Socket s = server.accept();
 				NewBankClientHandler clientHandler = new NewBankClientHandler(s);
-				clientHandler.start();
+				sessions.execute(clientHandler);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		finally {
+			sessions.shutdown();
 			try {
 				server.close();
 			} catch (IOException e) {
@@ -33,9 +47,74 @@ public class NewBankServer extends Thread{
 			}
 		}
 	}
-	
+
+	// runs each client on its own virtual thread when the Java runtime supports them (Java 21 onwards)
+	private static ExecutorService virtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads are not supported by this Java runtime. Using a thread per client.");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	// takes a snapshot of the bank at a fixed interval on a background thread
+	private static void scheduleSnapshots(NewBank bank, Path snapshotFile, long intervalSeconds) {
+		ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "NewBank snapshots");
+			thread.setDaemon(true);
+			return thread;
+		});
+		snapshots.scheduleWithFixedDelay(() -> {
+			try {
+				bank.takeSnapshot(snapshotFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
 	public static void main(String[] args) throws IOException {
-		// starts a new NewBankServer thread on a specified port number
-		new NewBankServer(14002).start();
+		// starts a new server thread on a specified port number
+		// "thread" (default) - a platform thread per client
+		// "virtual" - a virtual thread per client
+		// "pool <n>" - at most n platform threads, further clients wait for a free thread
+		// "nio" - the non-blocking selector server instead of a thread per client
+		// every change is written to a journal file (and replayed from it on startup) unless -Dnewbank.journal=none
+		// -Dnewbank.journal.sync=per_command|batched|async chooses when responses wait for the disk
+		int port = 14002;
+		// the bank is also snapshotted every -Dnewbank.snapshot.interval seconds, so startup only replays recent entries
+		String journalFile = System.getProperty("newbank.journal", "newbank.journal");
+		if (!journalFile.equals("none")) {
+			CommandJournal.SyncPolicy policy = CommandJournal.SyncPolicy.valueOf(
+					System.getProperty("newbank.journal.sync", "batched").toUpperCase());
+			long batchDelay = Long.parseLong(System.getProperty("newbank.journal.batchdelay", "0")); // microseconds
+			Path snapshotFile = Paths.get(System.getProperty("newbank.snapshot", "newbank.snapshot"));
+			long snapshotInterval = Long.parseLong(System.getProperty("newbank.snapshot.interval", "600"));
+			NewBank bank = NewBank.getBank();
+			bank.recover(snapshotFile, Paths.get(journalFile), policy, batchDelay);
+			scheduleSnapshots(bank, snapshotFile, snapshotInterval);
+		}
+		// interest is added every -Dnewbank.endofday.interval seconds (if the bank's date has moved on) and after TIMETRAVEL
+		NewBank.getBank().scheduleEndOfDay(Long.parseLong(System.getProperty("newbank.endofday.interval", "60")));
+		// sessions that have ended are cleared out every -Dnewbank.session.evictinterval seconds
+		NewBank.getBank().getSessions().scheduleEviction(
+				Long.parseLong(System.getProperty("newbank.session.evictinterval", "60")));
+		String mode = args.length > 0 ? args[0] : "thread";
+		switch (mode) {
+			case "nio":
+				new NewBankNioServer(port, Runtime.getRuntime().availableProcessors()).start();
+				break;
+			case "virtual":
+				new NewBankServer(port, virtualThreadExecutor()).start();
+				break;
+			case "pool":
+				int threads = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+				new NewBankServer(port, Executors.newFixedThreadPool(threads)).start();
+				break;
+			default:
+				new NewBankServer(port).start();
+		}
 	}
 }
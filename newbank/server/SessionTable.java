@@ -0,0 +1,118 @@
+package newbank.server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// the sessions customers have logged in to, so that a client that reconnects can resume its session with the token it
+// was given instead of logging in again
+// a token is random and only means something to this table, so it cannot be guessed or made up from a user name
+// a session ends when it is logged out of, when it has gone unused by any connection for the idle timeout, or when
+// it reaches its lifetime (a connection that is still open keeps working, but the token can no longer be resumed)
+// sessions are not journaled - after a restart every client logs in again
+public class SessionTable {
+
+	private static final int TOKEN_BYTES = 32;
+
+	// a session's fields are only changed inside one of the map's compute methods, so they are guarded by the map
+	private static class Session {
+		final CustomerID customer;
+		final long expires; // nanoTime
+		long lastUsed; // nanoTime the last connection using the session let go of it
+		int connections; // connections currently using the session - it is never idle while this is above 0
+
+		Session(CustomerID customer, long now, long lifetime) {
+			this.customer = customer;
+			this.expires = now + lifetime;
+			this.lastUsed = now;
+			this.connections = 1;
+		}
+
+		boolean isOver(long now, long idleTimeout) {
+			return now - expires >= 0 || (connections == 0 && now - lastUsed >= idleTimeout);
+		}
+	}
+
+	private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+	private final SecureRandom random = new SecureRandom();
+	private final long idleTimeout; // nanoseconds
+	private final long lifetime; // nanoseconds
+
+	public SessionTable(long idleTimeoutSeconds, long lifetimeSeconds) {
+		this.idleTimeout = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+		this.lifetime = TimeUnit.SECONDS.toNanos(lifetimeSeconds);
+	}
+
+	// starts a session for a customer who has just logged in, used by the calling connection; returns its token
+	public String open(CustomerID customer) {
+		byte[] bytes = new byte[TOKEN_BYTES];
+		random.nextBytes(bytes);
+		String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+		sessions.put(token, new Session(customer, System.nanoTime(), lifetime));
+		return token;
+	}
+
+	// the customer whose session the token belongs to, now used by the calling connection as well
+	// (null if there is no such session or it is over)
+	public CustomerID resume(String token) {
+		long now = System.nanoTime();
+		Session resumed = sessions.computeIfPresent(token, (key, session) -> {
+			if (session.isOver(now, idleTimeout)) {
+				return null;
+			}
+			session.connections++;
+			return session;
+		});
+		return resumed != null ? resumed.customer : null;
+	}
+
+	// the calling connection has closed without logging out - the session stays open until it is idle for too long
+	public void release(String token) {
+		long now = System.nanoTime();
+		sessions.computeIfPresent(token, (key, session) -> {
+			session.connections--;
+			session.lastUsed = now;
+			return session;
+		});
+	}
+
+	// the customer has logged out - the token cannot be resumed again
+	public void close(String token) {
+		sessions.remove(token);
+	}
+
+	// removes every session that is over; returns the number removed
+	public int evict() {
+		long now = System.nanoTime();
+		int evicted = 0;
+		for (String token : sessions.keySet()) {
+			boolean[] removed = new boolean[1];
+			sessions.computeIfPresent(token, (key, session) -> {
+				removed[0] = session.isOver(now, idleTimeout);
+				return removed[0] ? null : session;
+			});
+			if (removed[0]) {
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	public int size() {
+		return sessions.size();
+	}
+
+	// evicts sessions that are over on a background thread every intervalSeconds
+	public void scheduleEviction(long intervalSeconds) {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "NewBank session eviction");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::evict, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+}
@@ -0,0 +1,148 @@
+package newbank.server;
+
+import java.util.regex.Pattern;
+
+// checks the format of contact details and numbers entered by customers
+// simple formats are checked by hand-written scanners; the rest use patterns compiled once and shared by every thread
+// (a Pattern is thread-safe, only the Matcher it creates for each check is not)
+public final class Validators {
+
+	// Regex based on assets.publishing.service.gov.uk
+	private static final Pattern POSTCODE = Pattern.compile("^([Gg][Ii][Rr] 0[Aa]{2})|((([A-Za-z][0-9]{1,2})|(([A-Za-z][A-Ha-hJ-Yj-y][0-9]{1,2})|(([AZa-z][0-9][A-Za-z])|([A-Za-z][A-Ha-hJ-Yj-y][0-9]?[A-Za-z])))) [0-9][A-Za-z]{2})$");
+	// Regex based on https://regexlib.com/
+	private static final Pattern LANDLINE = Pattern.compile("^((\\(?0\\d{4}\\)?\\s?\\d{3}\\s?\\d{3})|(\\(?0\\d{3}\\)?\\s?\\d{3}\\s?\\d{4})|(\\(?0\\d{2}\\)?\\s?\\d{4}\\s?\\d{4}))(\\s?\\#(\\d{4}|\\d{3}))?$");
+
+	private Validators() {
+	}
+
+	public static boolean isPostcode(String postcode) {
+		return POSTCODE.matcher(postcode).matches();
+	}
+
+	public static boolean isLandline(String phone) {
+		return LANDLINE.matcher(phone).matches();
+	}
+
+	// the same addresses as \b[A-Za-z0-9._%+-]+@[A-Za-z0-9.-]+\.[A-Za-z]{2,}\b (based on regular-expressions.info):
+	// a name starting with a letter, digit or underscore, an @, then a domain whose last part is at least two letters
+	public static boolean isEmail(String email) {
+		int at = email.indexOf('@');
+		if (at < 1 || !(isLetterOrDigit(email.charAt(0)) || email.charAt(0) == '_')) {
+			return false;
+		}
+		for (int i = 1; i < at; i++) {
+			char c = email.charAt(i);
+			if (!isLetterOrDigit(c) && c != '.' && c != '_' && c != '%' && c != '+' && c != '-') {
+				return false;
+			}
+		}
+		int lastDot = -1;
+		for (int i = at + 1; i < email.length(); i++) {
+			char c = email.charAt(i);
+			if (c == '.') {
+				lastDot = i;
+			} else if (!isLetterOrDigit(c) && c != '-') {
+				return false;
+			}
+		}
+		if (lastDot < at + 2 || email.length() - lastDot - 1 < 2) {
+			return false;
+		}
+		for (int i = lastDot + 1; i < email.length(); i++) {
+			if (!isLetter(email.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// the same numbers as ((\+44(\s\(0\)\s|\s0\s|\s)?)|0)7\d{3}(\s)?\d{6} (based on regextester.com):
+	// +44 or 0, then 7 and three digits, an optional space, and six more digits
+	public static boolean isMobile(String phone) {
+		int i;
+		if (phone.startsWith("+44")) {
+			i = 3;
+			if (i < phone.length() && isWhitespace(phone.charAt(i))) {
+				// "+44 ", "+44 0 " or "+44 (0) "
+				if (phone.startsWith("0", i + 1) && i + 2 < phone.length() && isWhitespace(phone.charAt(i + 2))) {
+					i += 3;
+				} else if (phone.startsWith("(0)", i + 1) && i + 4 < phone.length() && isWhitespace(phone.charAt(i + 4))) {
+					i += 5;
+				} else {
+					i += 1;
+				}
+			}
+		} else if (phone.startsWith("0")) {
+			i = 1;
+		} else {
+			return false;
+		}
+		if (!phone.startsWith("7", i)) {
+			return false;
+		}
+		i = skipDigits(phone, i + 1, 3);
+		if (i < 0) {
+			return false;
+		}
+		if (i < phone.length() && isWhitespace(phone.charAt(i))) {
+			i++;
+		}
+		i = skipDigits(phone, i, 6);
+		return i == phone.length();
+	}
+
+	// whether text[start, end) is a number such as "12", "-3" or "4.50" (the same numbers as -?\d+(\.\d+)?)
+	public static boolean isNumber(CharSequence text, int start, int end) {
+		int i = start < end && text.charAt(start) == '-' ? start + 1 : start;
+		int digits = 0;
+		while (i < end && isDigit(text.charAt(i))) {
+			i++;
+			digits++;
+		}
+		if (digits == 0) {
+			return false;
+		}
+		if (i == end) {
+			return true;
+		}
+		if (text.charAt(i) != '.') {
+			return false;
+		}
+		int fractionStart = ++i;
+		while (i < end && isDigit(text.charAt(i))) {
+			i++;
+		}
+		return i == end && i > fractionStart;
+	}
+
+	// returns the position after exactly count digits starting at start, or -1 if they are not there
+	private static int skipDigits(String text, int start, int count) {
+		if (start + count > text.length()) {
+			return -1;
+		}
+		for (int i = start; i < start + count; i++) {
+			if (!isDigit(text.charAt(i))) {
+				return -1;
+			}
+		}
+		return start + count;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+	}
+
+	private static boolean isLetterOrDigit(char c) {
+		return isLetter(c) || isDigit(c);
+	}
+
+	// the characters matched by \s
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+}